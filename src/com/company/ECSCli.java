@@ -130,8 +130,8 @@ public class ECSCli {
             throw new Exception("incorrect arguments are addnode");
         }
         String strategy = tokens[1];
-        if (!(strategy.equals("fifo") || strategy.equals("lru") || strategy.equals("lfu"))) {
-            throw new Exception("cache strategy can only be FIFO, LRU or LFU");
+        if (!isCacheStrategy(strategy)) {
+            throw new Exception("cache strategy can only be FIFO, LRU, LFU, TinyLFU, ARC or ClockPro");
         }
         int size = 5;
         try {
@@ -162,8 +162,8 @@ public class ECSCli {
         }
 
         String strategy = tokens[2];
-        if (!(strategy.equals("fifo") || strategy.equals("lru") || strategy.equals("lfu"))) {
-            throw new Exception("cache strategy can only be FIFO, LRU or LFU");
+        if (!isCacheStrategy(strategy)) {
+            throw new Exception("cache strategy can only be FIFO, LRU, LFU, TinyLFU, ARC or ClockPro");
         }
 
         int size = 5;
@@ -239,6 +239,19 @@ public class ECSCli {
         }
     }
 
+    /**
+     * @param strategy strategy given to addnode(s), in lower case
+     * @return true if it names an IKVServer.CacheStrategy other than None
+     */
+    private static boolean isCacheStrategy(String strategy) {
+        for (IKVServer.CacheStrategy cacheStrategy: IKVServer.CacheStrategy.values()) {
+            if (cacheStrategy != IKVServer.CacheStrategy.None && cacheStrategy.name().equalsIgnoreCase(strategy)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static void printHelp() {
         StringBuilder sb = new StringBuilder();
         final String prefix = "\t";
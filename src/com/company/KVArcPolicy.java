@@ -0,0 +1,182 @@
+package com.company;
+
+import java.util.HashMap;
+
+/**
+ * Adaptive Replacement Cache strategy of KVCache.
+ *
+ * Resident nodes are split between T1, accessed once since they entered, and T2, accessed again
+ * since; both are LRU lists. The keys last evicted from each are remembered without their value
+ * in the ghost lists B1 and B2. A miss on a key of B1 shows T1 was too small and raises the target
+ * weight p of T1; a miss on a key of B2 lowers it. Eviction takes from T1 while it is over p, and
+ * from T2 otherwise, so the split between recency and frequency follows the workload.
+ * Weights are value lengths, as for the capacity of KVCache.
+ * This class is not thread-safe.
+ */
+class KVArcPolicy implements KVCachePolicy {
+
+    private static final int T1 = 0;
+    private static final int T2 = 1;
+    private static final int B1 = 2;
+    private static final int B2 = 3;
+
+    private final KVCacheList t1 = new KVCacheList();
+    private final KVCacheList t2 = new KVCacheList();
+    private final KVCacheList b1 = new KVCacheList();
+    private final KVCacheList b2 = new KVCacheList();
+    private final HashMap<String, CacheNode> ghosts = new HashMap<>();
+    private final int capacity;
+    private int t1Weight;
+    private int t2Weight;
+    private int b1Weight;
+    private int b2Weight;
+    private int target; // p, the weight T1 should have
+    private boolean missInB2; // the key being inserted was found in B2
+
+    /**
+     * @param capacity capacity of the cache
+     */
+    KVArcPolicy(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adapt the target of T1 if the key is in a ghost list
+     */
+    public void miss(String key) {
+        CacheNode ghost = ghosts.get(key);
+        missInB2 = ghost != null && ghost.region == B2;
+        if (ghost == null) {
+            return;
+        }
+        if (ghost.region == B1) {
+            int ratio = Math.max(1, b2.size() / b1.size());
+            target = (int) Math.min(capacity, target + (long) ratio * Math.max(1, ghost.weight));
+        } else {
+            int ratio = Math.max(1, b1.size() / b2.size());
+            target = (int) Math.max(0, target - (long) ratio * Math.max(1, ghost.weight));
+        }
+    }
+
+    /**
+     * A node whose key is a ghost goes to T2, any other to T1
+     */
+    public void insert(CacheNode node) {
+        node.weight = node.value.length();
+        CacheNode ghost = ghosts.remove(node.key);
+        if (ghost != null) {
+            unlinkGhost(ghost);
+            node.region = T2;
+            t2.addLast(node);
+            t2Weight += node.weight;
+        } else {
+            node.region = T1;
+            t1.addLast(node);
+            t1Weight += node.weight;
+        }
+        missInB2 = false;
+        trimGhosts();
+    }
+
+    public void touch(CacheNode node) {
+        int delta = node.value.length() - node.weight;
+        node.weight += delta;
+        if (node.region == T1) {
+            t1.remove(node);
+            t1Weight -= node.weight - delta;
+            node.region = T2;
+            t2.addLast(node);
+            t2Weight += node.weight;
+        } else {
+            t2Weight += delta;
+            t2.moveToLast(node);
+        }
+    }
+
+    public boolean mark(CacheNode node) {
+        return false;
+    }
+
+    public void remove(CacheNode node) {
+        if (node.region == T1) {
+            t1.remove(node);
+            t1Weight -= node.weight;
+        } else {
+            t2.remove(node);
+            t2Weight -= node.weight;
+        }
+    }
+
+    /**
+     * Evict the least recent node of T1 if T1 is over its target, of T2 otherwise, and remember
+     * its key in the matching ghost list
+     */
+    public CacheNode evict() {
+        boolean fromT1 = t1.size() > 0
+                && (t1Weight > target || (missInB2 && t1Weight == target) || t2.size() == 0);
+        CacheNode node = fromT1 ? t1.pollFirst() : t2.pollFirst();
+        if (node == null) {
+            return null;
+        }
+        CacheNode ghost = new CacheNode(node.key);
+        ghost.weight = node.weight;
+        if (fromT1) {
+            t1Weight -= node.weight;
+            ghost.region = B1;
+            b1.addLast(ghost);
+            b1Weight += ghost.weight;
+        } else {
+            t2Weight -= node.weight;
+            ghost.region = B2;
+            b2.addLast(ghost);
+            b2Weight += ghost.weight;
+        }
+        CacheNode old = ghosts.put(ghost.key, ghost);
+        if (old != null) {
+            unlinkGhost(old);
+        }
+        trimGhosts();
+        return node;
+    }
+
+    public void clear() {
+        t1.clear();
+        t2.clear();
+        b1.clear();
+        b2.clear();
+        ghosts.clear();
+        t1Weight = 0;
+        t2Weight = 0;
+        b1Weight = 0;
+        b2Weight = 0;
+        target = 0;
+        missInB2 = false;
+    }
+
+    /**
+     * Keep T1 and B1 within the capacity, and the four lists within twice the capacity
+     */
+    private void trimGhosts() {
+        while (b1.size() > 0 && t1Weight + b1Weight > capacity) {
+            dropGhost(b1.peekFirst());
+        }
+        while (b2.size() > 0 && t1Weight + t2Weight + b1Weight + b2Weight > 2L * capacity) {
+            dropGhost(b2.peekFirst());
+        }
+    }
+
+    private void dropGhost(CacheNode ghost) {
+        ghosts.remove(ghost.key);
+        unlinkGhost(ghost);
+    }
+
+    private void unlinkGhost(CacheNode ghost) {
+        if (ghost.region == B1) {
+            b1.remove(ghost);
+            b1Weight -= ghost.weight;
+        } else {
+            b2.remove(ghost);
+            b2Weight -= ghost.weight;
+        }
+    }
+}
@@ -0,0 +1,685 @@
+package com.company;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Throughput benchmarks of the storage layer.
+ * Usage: java com.company.KVBenchmark [benchmark...] [trace file...]
+ * Runs every benchmark when none is given; each prints one line per configuration.
+ * Trace files, one key per line, are replayed by the hitratio benchmark next to its generated traces.
+ */
+public class KVBenchmark {
+
+    private static final String DB_PATH = "./bench-db/";
+    private static final int THREADS = 16;
+
+    /**
+     * One operation of a benchmark
+     */
+    private interface Op {
+        void run(int thread, int i) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> benchmarks = Arrays.asList(args);
+        if (benchmarks.isEmpty() || benchmarks.contains("durability")) {
+            durability();
+        }
+        if (benchmarks.isEmpty() || benchmarks.contains("contention")) {
+            contention();
+        }
+        if (benchmarks.isEmpty() || benchmarks.contains("compression")) {
+            compression();
+        }
+        if (benchmarks.isEmpty() || benchmarks.contains("compaction")) {
+            compaction();
+        }
+        if (benchmarks.isEmpty() || benchmarks.contains("async")) {
+            async();
+        }
+        if (benchmarks.isEmpty() || benchmarks.contains("threads")) {
+            threads();
+        }
+        if (benchmarks.isEmpty() || benchmarks.contains("multiget")) {
+            multiget();
+        }
+        if (benchmarks.isEmpty() || benchmarks.contains("cache")) {
+            cache();
+        }
+        if (benchmarks.isEmpty() || benchmarks.contains("hotget")) {
+            hotget();
+        }
+        if (benchmarks.isEmpty() || benchmarks.contains("hitratio")) {
+            List<String> traceFiles = new ArrayList<>();
+            for (String arg: args) {
+                if (new File(arg).isFile()) {
+                    traceFiles.add(arg);
+                }
+            }
+            hitratio(traceFiles);
+        }
+    }
+
+    /**
+     * Concurrent putKV throughput of every durability mode, for each storage format
+     * @throws Exception
+     */
+    static void durability() throws Exception {
+        final int opsPerThread = 500;
+        final String value = randomValue(100);
+        for (IKVServer.StorageFormat format: IKVServer.StorageFormat.values()) {
+            for (KVStorageOptions.Durability durability: KVStorageOptions.Durability.values()) {
+                KVStorageOptions options = new KVStorageOptions().setFormat(format).setDurability(durability);
+                final KVSimpleStorage storage = new KVSimpleStorage(DB_PATH, options);
+                try {
+                    long nanos = runConcurrently(THREADS, opsPerThread, new Op() {
+                        public void run(int thread, int i) throws IOException {
+                            storage.putKV("key-" + thread + "-" + i, value);
+                        }
+                    });
+                    report("durability " + format + " " + durability, THREADS * opsPerThread, nanos);
+                } finally {
+                    storage.clearStorage();
+                    storage.close();
+                    deleteDir(new File(DB_PATH));
+                }
+            }
+        }
+    }
+
+    /**
+     * Concurrent mix of getKV and putKV over a shared key set, for each storage format.
+     * Durability.OS keeps fsyncs from hiding the cost of locking.
+     * @throws Exception
+     */
+    static void contention() throws Exception {
+        final int keys = 1000;
+        final int opsPerThread = 2000;
+        final String value = randomValue(100);
+        for (IKVServer.StorageFormat format: IKVServer.StorageFormat.values()) {
+            for (final int readPercent: new int[] {50, 95}) {
+                KVStorageOptions options = new KVStorageOptions().setFormat(format)
+                        .setDurability(KVStorageOptions.Durability.OS);
+                final KVStorage storage = new KVStorage(DB_PATH, options, keys / 10, IKVServer.CacheStrategy.LRU);
+                try {
+                    for (int i = 0; i < keys; ++i) {
+                        storage.putKV("key-" + i, value);
+                    }
+                    long nanos = runConcurrently(THREADS, opsPerThread, new Op() {
+                        public void run(int thread, int i) throws IOException {
+                            ThreadLocalRandom random = ThreadLocalRandom.current();
+                            String key = "key-" + random.nextInt(keys);
+                            if (random.nextInt(100) < readPercent) {
+                                storage.getKV(key);
+                            } else {
+                                storage.putKV(key, value);
+                            }
+                        }
+                    });
+                    report("contention " + format + " " + readPercent + "% reads", THREADS * opsPerThread, nanos);
+                } finally {
+                    storage.clearStorage();
+                    storage.close();
+                    deleteDir(new File(DB_PATH));
+                }
+            }
+        }
+    }
+
+    /**
+     * Concurrent putKV and getKV throughput and disk footprint of every codec, for each storage format.
+     * Values are JSON documents of about 1KB, which compress like typical application values.
+     * @throws Exception
+     */
+    static void compression() throws Exception {
+        final int opsPerThread = 500;
+        final String[] values = new String[64];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = jsonValue(1024);
+        }
+        List<String> codecs = new ArrayList<>();
+        codecs.add(null);
+        codecs.addAll(KVCompression.codecNames());
+        for (IKVServer.StorageFormat format: IKVServer.StorageFormat.values()) {
+            for (String codec: codecs) {
+                KVStorageOptions options = new KVStorageOptions().setFormat(format).setCompression(codec)
+                        .setDurability(KVStorageOptions.Durability.OS);
+                final KVSimpleStorage storage = new KVSimpleStorage(DB_PATH, options);
+                String name = "compression " + format + " " + (codec == null ? "none" : codec);
+                try {
+                    long nanos = runConcurrently(THREADS, opsPerThread, new Op() {
+                        public void run(int thread, int i) throws IOException {
+                            storage.putKV("key-" + thread + "-" + i, values[i % values.length]);
+                        }
+                    });
+                    report(name + " put", THREADS * opsPerThread, nanos);
+                    nanos = runConcurrently(THREADS, opsPerThread, new Op() {
+                        public void run(int thread, int i) throws IOException {
+                            storage.getKV("key-" + thread + "-" + i);
+                        }
+                    });
+                    report(name + " get", THREADS * opsPerThread, nanos);
+                    System.out.println(String.format("%-40s %10d KB on disk", name, dirSize(new File(DB_PATH)) >> 10));
+                } finally {
+                    storage.clearStorage();
+                    storage.close();
+                    deleteDir(new File(DB_PATH));
+                }
+            }
+        }
+    }
+
+    /**
+     * Foreground throughput of an overwrite-heavy mix while compaction runs in the background,
+     * without a rate limit and with the default one, then the compaction stats and disk footprint.
+     * @throws Exception
+     */
+    static void compaction() throws Exception {
+        final int keys = 2000;
+        final int opsPerThread = 5000;
+        final String value = randomValue(1024);
+        long defaultRate = new KVStorageOptions().getCompactionBytesPerSecond();
+        for (IKVServer.StorageFormat format: new IKVServer.StorageFormat[] {IKVServer.StorageFormat.Log, IKVServer.StorageFormat.LSM}) {
+            for (long rate: new long[] {0, defaultRate}) {
+                KVStorageOptions options = new KVStorageOptions().setFormat(format)
+                        .setDurability(KVStorageOptions.Durability.OS).setCompactionBytesPerSecond(rate);
+                final KVSimpleStorage storage = new KVSimpleStorage(DB_PATH, options);
+                String name = "compaction " + format + " " + (rate == 0 ? "unlimited" : (rate >> 20) + "MB/s");
+                try {
+                    long nanos = runConcurrently(THREADS, opsPerThread, new Op() {
+                        public void run(int thread, int i) throws IOException {
+                            ThreadLocalRandom random = ThreadLocalRandom.current();
+                            String key = "key-" + random.nextInt(keys);
+                            if (random.nextInt(100) < 50) {
+                                storage.getKV(key);
+                            } else {
+                                storage.putKV(key, value);
+                            }
+                        }
+                    });
+                    report(name, THREADS * opsPerThread, nanos);
+                    System.out.println(String.format("%-40s %s", name, storage.getCompactionStats()));
+                    storage.compact();
+                    System.out.println(String.format("%-40s %s, %d KB on disk", name, storage.getCompactionStats(),
+                            dirSize(new File(DB_PATH)) >> 10));
+                } finally {
+                    storage.clearStorage();
+                    storage.close();
+                    deleteDir(new File(DB_PATH));
+                }
+            }
+        }
+    }
+
+    /**
+     * getKV/putKV mix issued by two client threads, blocking and then asynchronously with up
+     * to 256 operations in flight per client, for each storage format.
+     * @throws Exception
+     */
+    static void async() throws Exception {
+        final int clients = 2;
+        final int keys = 10000;
+        final int opsPerThread = 20000;
+        final String value = randomValue(100);
+        for (IKVServer.StorageFormat format: IKVServer.StorageFormat.values()) {
+            KVStorageOptions options = new KVStorageOptions().setFormat(format)
+                    .setDurability(KVStorageOptions.Durability.Sync).setAsyncThreads(THREADS);
+            final KVStorage storage = new KVStorage(DB_PATH, options, keys / 10, IKVServer.CacheStrategy.LRU);
+            try {
+                for (int i = 0; i < keys; ++i) {
+                    storage.putKV("key-" + i, value);
+                }
+                long nanos = runConcurrently(clients, opsPerThread, new Op() {
+                    public void run(int thread, int i) throws IOException {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        String key = "key-" + random.nextInt(keys);
+                        if (random.nextInt(100) < 90) {
+                            storage.getKV(key);
+                        } else {
+                            storage.putKV(key, value);
+                        }
+                    }
+                });
+                report("async " + format + " blocking", clients * opsPerThread, nanos);
+                final Semaphore inFlight = new Semaphore(256 * clients);
+                long begin = System.nanoTime();
+                runConcurrently(clients, opsPerThread, new Op() {
+                    public void run(int thread, int i) throws IOException {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        String key = "key-" + random.nextInt(keys);
+                        inFlight.acquireUninterruptibly();
+                        CompletableFuture<KVStorageResult> future = random.nextInt(100) < 90
+                                ? storage.getKVAsync(key) : storage.putKVAsync(key, value);
+                        future.whenComplete(new BiConsumer<KVStorageResult, Throwable>() {
+                            public void accept(KVStorageResult result, Throwable t) {
+                                inFlight.release();
+                            }
+                        });
+                    }
+                });
+                // wait for the operations still in flight
+                inFlight.acquireUninterruptibly(256 * clients);
+                nanos = System.nanoTime() - begin;
+                report("async " + format + " async", clients * opsPerThread, nanos);
+            } finally {
+                storage.clearStorage();
+                storage.close();
+                deleteDir(new File(DB_PATH));
+            }
+        }
+    }
+
+    /**
+     * 10000 concurrent clients doing blocking getKV and putKV, each on a platform thread then on a
+     * virtual thread, followed by the asynchronous API run on platform then virtual threads.
+     * Virtual threads need Java 21, the virtual configurations are skipped on older JVMs.
+     * @throws Exception
+     */
+    static void threads() throws Exception {
+        final int clients = 10000;
+        final int keys = 10000;
+        final int opsPerClient = 20;
+        final String value = randomValue(100);
+        for (IKVServer.StorageFormat format: IKVServer.StorageFormat.values()) {
+            KVStorageOptions options = new KVStorageOptions().setFormat(format);
+            final KVStorage storage = new KVStorage(DB_PATH, options, keys / 10, IKVServer.CacheStrategy.LRU);
+            try {
+                for (int i = 0; i < keys; ++i) {
+                    storage.putKV("key-" + i, value);
+                }
+                Op op = new Op() {
+                    public void run(int thread, int i) throws IOException {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        String key = "key-" + random.nextInt(keys);
+                        if (random.nextInt(100) < 90) {
+                            storage.getKV(key);
+                        } else {
+                            storage.putKV(key, value);
+                        }
+                    }
+                };
+                try {
+                    long nanos = runConcurrently(Executors.newCachedThreadPool(), clients, opsPerClient, op);
+                    report("threads " + format + " platform", clients * opsPerClient, nanos);
+                } catch (OutOfMemoryError e) {
+                    System.out.println("threads " + format + " platform: cannot start " + clients + " threads");
+                }
+                ExecutorService virtual = KVThreads.newVirtualThreadPerTaskExecutor();
+                if (virtual != null) {
+                    long nanos = runConcurrently(virtual, clients, opsPerClient, op);
+                    report("threads " + format + " virtual", clients * opsPerClient, nanos);
+                } else {
+                    System.out.println("threads " + format + " virtual: virtual threads not available");
+                }
+            } finally {
+                storage.clearStorage();
+                storage.close();
+                deleteDir(new File(DB_PATH));
+            }
+        }
+        if (!KVThreads.virtualThreadsSupported()) {
+            return;
+        }
+        for (KVStorageOptions.ExecutionMode mode: KVStorageOptions.ExecutionMode.values()) {
+            KVStorageOptions options = new KVStorageOptions().setExecutionMode(mode)
+                    .setDurability(KVStorageOptions.Durability.Sync).setAsyncThreads(THREADS);
+            final KVStorage storage = new KVStorage(DB_PATH, options, keys / 10, IKVServer.CacheStrategy.LRU);
+            try {
+                for (int i = 0; i < keys; ++i) {
+                    storage.putKV("key-" + i, value);
+                }
+                final int inFlightLimit = options.getAsyncQueueCapacity();
+                final Semaphore inFlight = new Semaphore(inFlightLimit);
+                long begin = System.nanoTime();
+                runConcurrently(2, clients, new Op() {
+                    public void run(int thread, int i) throws IOException {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        String key = "key-" + random.nextInt(keys);
+                        inFlight.acquireUninterruptibly();
+                        CompletableFuture<KVStorageResult> future = random.nextInt(100) < 90
+                                ? storage.getKVAsync(key) : storage.putKVAsync(key, value);
+                        future.whenComplete(new BiConsumer<KVStorageResult, Throwable>() {
+                            public void accept(KVStorageResult result, Throwable t) {
+                                inFlight.release();
+                            }
+                        });
+                    }
+                });
+                // wait for the operations still in flight
+                inFlight.acquireUninterruptibly(inFlightLimit);
+                report("threads async " + mode, 2 * clients, System.nanoTime() - begin);
+            } finally {
+                storage.clearStorage();
+                storage.close();
+                deleteDir(new File(DB_PATH));
+            }
+        }
+    }
+
+    /**
+     * Reads of 100 random keys, one getKV at a time then as one multi-get, for each storage format.
+     * The cache is cleared before each read so that every key goes to disk.
+     * @throws Exception
+     */
+    static void multiget() throws Exception {
+        final int keys = 100000;
+        final int batch = 100;
+        final int opsPerThread = 200;
+        final String value = randomValue(100);
+        for (IKVServer.StorageFormat format: IKVServer.StorageFormat.values()) {
+            KVStorageOptions options = new KVStorageOptions().setFormat(format).setNegativeCacheCapacity(0);
+            final KVStorage storage = new KVStorage(DB_PATH, options, batch, IKVServer.CacheStrategy.LRU);
+            try {
+                Map<String, String> pairs = new HashMap<>();
+                for (int i = 0; i < keys; ++i) {
+                    pairs.put("key-" + i, value);
+                    if (pairs.size() == 1000) {
+                        storage.putKV(pairs);
+                        pairs.clear();
+                    }
+                }
+                long nanos = runConcurrently(THREADS, opsPerThread, new Op() {
+                    public void run(int thread, int i) throws IOException {
+                        storage.clearCache();
+                        for (String key: randomKeys(keys, batch)) {
+                            storage.getKV(key);
+                        }
+                    }
+                });
+                report("multiget " + format + " single", THREADS * opsPerThread * batch, nanos);
+                nanos = runConcurrently(THREADS, opsPerThread, new Op() {
+                    public void run(int thread, int i) throws IOException {
+                        storage.clearCache();
+                        storage.getKV(randomKeys(keys, batch));
+                    }
+                });
+                report("multiget " + format + " batch", THREADS * opsPerThread * batch, nanos);
+            } finally {
+                storage.clearStorage();
+                storage.close();
+                deleteDir(new File(DB_PATH));
+            }
+        }
+    }
+
+    /**
+     * KVCache operations at 1M entries, for each strategy: hits, which reorder the entries,
+     * then puts of new keys, which evict one entry each. Single-threaded, as KVCache is not thread-safe.
+     * LFU runs a second time, halving its frequencies every 1M accesses.
+     */
+    static void cache() {
+        final int entries = 1000000;
+        final int ops = 1000000;
+        final String value = randomValue(8);
+        List<IKVServer.CacheStrategy> strategies = new ArrayList<>(Arrays.asList(IKVServer.CacheStrategy.values()));
+        strategies.add(IKVServer.CacheStrategy.LFU);
+        for (int s = 0; s < strategies.size(); ++s) {
+            IKVServer.CacheStrategy strategy = strategies.get(s);
+            int decayInterval = s == strategies.size() - 1 ? entries : 0;
+            String name = strategy + (decayInterval > 0 ? " decay" : "");
+            // KVCache halves its capacity, which counts characters of the values
+            KVCache cache = new KVCache(2 * entries * value.length(), strategy, decayInterval);
+            for (int i = 0; i < entries; ++i) {
+                cache.putKV("key-" + i, value);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long begin = System.nanoTime();
+            for (int i = 0; i < ops; ++i) {
+                String key = "key-" + random.nextInt(entries);
+                if (cache.getKV(key) != null) {
+                    cache.updateOrderList(key);
+                }
+            }
+            report("cache " + name + " get", ops, System.nanoTime() - begin);
+            begin = System.nanoTime();
+            for (int i = 0; i < ops; ++i) {
+                cache.putKV("new-" + i, value);
+            }
+            report("cache " + name + " put", ops, System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * getKV throughput on a small set of cached keys, for an increasing number of threads.
+     * Hits take no storage lock, so the throughput should grow with the threads up to the cores.
+     * @throws Exception
+     */
+    static void hotget() throws Exception {
+        final int keys = 1000;
+        final int opsPerThread = 200000;
+        final String value = randomValue(100);
+        for (IKVServer.CacheStrategy strategy: new IKVServer.CacheStrategy[] {
+                IKVServer.CacheStrategy.LRU, IKVServer.CacheStrategy.LFU, IKVServer.CacheStrategy.ClockPro}) {
+            KVStorageOptions options = new KVStorageOptions().setDurability(KVStorageOptions.Durability.OS);
+            final KVStorage storage = new KVStorage(DB_PATH, options, 4 << 20, strategy);
+            try {
+                for (int i = 0; i < keys; ++i) {
+                    storage.putKV("key-" + i, value);
+                }
+                for (int threads = 1; threads <= THREADS; threads <<= 1) {
+                    long nanos = runConcurrently(threads, opsPerThread, new Op() {
+                        public void run(int thread, int i) throws IOException {
+                            storage.getKV("key-" + ThreadLocalRandom.current().nextInt(keys));
+                        }
+                    });
+                    report("hotget " + strategy + " " + threads + " threads", threads * opsPerThread, nanos);
+                }
+            } finally {
+                storage.clearStorage();
+                storage.close();
+                deleteDir(new File(DB_PATH));
+            }
+        }
+    }
+
+    /**
+     * Hit ratio of every cache strategy on generated traces of 1M accesses to 100K keys, with room
+     * for 2000 entries: a Zipf(0.99) distribution, a loop over 2500 keys, and the Zipf
+     * distribution interrupted by scans of keys read once. Then on the given trace files.
+     * @param traceFiles files of one key per line, only the first word of a line is read
+     * @throws IOException
+     */
+    static void hitratio(List<String> traceFiles) throws IOException {
+        final int keys = 100000;
+        final int accesses = 1000000;
+        final int entries = 2000;
+        Map<String, String[]> traces = new LinkedHashMap<>();
+        Random random = new Random(42);
+        double[] zipf = zipfDistribution(keys, 0.99);
+        String[] trace = new String[accesses];
+        for (int i = 0; i < accesses; ++i) {
+            trace[i] = "key-" + zipfKey(zipf, random);
+        }
+        traces.put("zipf", trace);
+        trace = new String[accesses];
+        for (int i = 0; i < accesses; ++i) {
+            trace[i] = "key-" + i % (entries * 5 / 4);
+        }
+        traces.put("loop", trace);
+        trace = new String[accesses];
+        int scanned = 0;
+        for (int i = 0; i < accesses; ++i) {
+            // a scan of 5000 keys every 50000 accesses
+            trace[i] = i % 50000 < 5000 ? "scan-" + scanned++ : "key-" + zipfKey(zipf, random);
+        }
+        traces.put("zipf+scan", trace);
+        for (String file: traceFiles) {
+            traces.put(new File(file).getName(), readTrace(file));
+        }
+        for (Map.Entry<String, String[]> entry: traces.entrySet()) {
+            for (IKVServer.CacheStrategy strategy: IKVServer.CacheStrategy.values()) {
+                if (strategy == IKVServer.CacheStrategy.None) {
+                    continue;
+                }
+                // KVCache halves its capacity, which counts characters of the values
+                KVCache cache = new KVCache(2 * entries, strategy);
+                long hits = 0;
+                for (String key: entry.getValue()) {
+                    if (cache.getKV(key) != null) {
+                        cache.updateOrderList(key);
+                        ++hits;
+                    } else {
+                        cache.putKV(key, "v");
+                    }
+                }
+                int length = entry.getValue().length;
+                System.out.println(String.format("%-40s %10d ops %9.2f%% hits",
+                        "hitratio " + entry.getKey() + " " + strategy, length, hits * 100.0 / length));
+            }
+        }
+    }
+
+    /**
+     * @return cumulative distribution of a Zipf law of the given exponent over keys keys
+     */
+    private static double[] zipfDistribution(int keys, double exponent) {
+        double[] cdf = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; ++i) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < keys; ++i) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    private static int zipfKey(double[] cdf, Random random) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return i >= 0 ? i : Math.min(-i - 1, cdf.length - 1);
+    }
+
+    private static String[] readTrace(String file) throws IOException {
+        List<String> keys = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                if (!words[0].isEmpty()) {
+                    keys.add(words[0]);
+                }
+            }
+        }
+        return keys.toArray(new String[0]);
+    }
+
+    private static List<String> randomKeys(int keys, int count) {
+        List<String> result = new ArrayList<>(count);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < count; ++i) {
+            result.add("key-" + random.nextInt(keys));
+        }
+        return result;
+    }
+
+    /**
+     * Run ops operations on each of threads threads, all starting at the same time
+     * @return elapsed time in nanoseconds
+     * @throws Exception if an operation failed
+     */
+    private static long runConcurrently(int threads, final int ops, final Op op) throws Exception {
+        return runConcurrently(Executors.newFixedThreadPool(threads), threads, ops, op);
+    }
+
+    /**
+     * Run ops operations on each of threads tasks of the given executor, all starting at the same time.
+     * The executor is shut down on return.
+     * @return elapsed time in nanoseconds
+     * @throws Exception if an operation failed
+     */
+    private static long runConcurrently(ExecutorService executor, int threads, final int ops, final Op op)
+            throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; ++t) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < ops; ++i) {
+                            op.run(thread, i);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<Void> future: futures) {
+                future.get();
+            }
+            return System.nanoTime() - begin;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void report(String name, long ops, long nanos) {
+        System.out.println(String.format("%-40s %10d ops %10.0f ops/s", name, ops, ops * 1e9 / nanos));
+    }
+
+    private static String randomValue(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < length; ++i) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return a JSON object of about the given length, with repeated field names and varied values
+     */
+    private static String jsonValue(int length) {
+        StringBuilder builder = new StringBuilder(length + 64);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        builder.append('[');
+        while (builder.length() < length) {
+            if (builder.length() > 1) {
+                builder.append(',');
+            }
+            builder.append("{\"id\":").append(random.nextInt(1000000))
+                    .append(",\"name\":\"").append(randomValue(8))
+                    .append("\",\"active\":").append(random.nextBoolean())
+                    .append(",\"score\":").append(random.nextInt(100)).append('}');
+        }
+        return builder.append(']').toString();
+    }
+
+    private static long dirSize(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                size += file.isDirectory() ? dirSize(file) : file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                deleteDir(file);
+            }
+        }
+        if (dir.exists() && !dir.delete()) {
+            System.out.println("Failed to delete " + dir);
+        }
+    }
+}
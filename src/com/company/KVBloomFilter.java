@@ -0,0 +1,121 @@
+package com.company;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable Bloom filter over string keys, used by KVSSTable to answer most lookups of
+ * absent keys without reading the table.
+ * Layout: hashCount(4) wordCount(4) words(8 each)
+ * The probe positions are derived from one 64-bit hash of the key (double hashing).
+ */
+class KVBloomFilter {
+
+    // ~1% false positives
+    static final int BITS_PER_KEY = 10;
+
+    private final long[] words;
+    private final int hashCount;
+
+    private KVBloomFilter(long[] words, int hashCount) {
+        this.words = words;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Build a filter over the given key hashes.
+     * @param hashes hashes computed by hash(String)
+     * @param count number of hashes to take from the array
+     * @return the filter
+     */
+    static KVBloomFilter build(long[] hashes, int count) {
+        long bits = Math.max(64, (long) count * BITS_PER_KEY);
+        long[] words = new long[(int) ((bits + 63) / 64)];
+        // k = ln(2) * bits per key minimizes false positives
+        int hashCount = Math.max(1, (int) Math.round(BITS_PER_KEY * 0.69));
+        KVBloomFilter filter = new KVBloomFilter(words, hashCount);
+        for (int i = 0; i < count; ++i) {
+            filter.add(hashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * @return the 64-bit hash of a key (FNV-1a over its chars, then a murmur finalizer)
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return false if the key is certainly not in the filter
+     */
+    boolean mightContain(String key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long bits = (long) words.length * 64;
+        for (int i = 1; i <= hashCount; ++i) {
+            long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return encoded size of this filter
+     */
+    int length() {
+        return 8 + words.length * 8;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(hashCount);
+        buffer.putInt(words.length);
+        for (long word: words) {
+            buffer.putLong(word);
+        }
+    }
+
+    /**
+     * Read a filter written by writeTo
+     * @param buffer buffer positioned at the start of the filter
+     * @return the filter; null if the buffer does not hold a valid one
+     */
+    static KVBloomFilter readFrom(ByteBuffer buffer) {
+        if (buffer.remaining() < 8) {
+            return null;
+        }
+        int hashCount = buffer.getInt();
+        int wordCount = buffer.getInt();
+        if (hashCount <= 0 || wordCount <= 0 || wordCount > buffer.remaining() / 8) {
+            return null;
+        }
+        long[] words = new long[wordCount];
+        for (int i = 0; i < wordCount; ++i) {
+            words[i] = buffer.getLong();
+        }
+        return new KVBloomFilter(words, hashCount);
+    }
+
+    private void add(long h) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long bits = (long) words.length * 64;
+        for (int i = 1; i <= hashCount; ++i) {
+            long bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+}
@@ -0,0 +1,892 @@
+package com.company;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage engine that keeps one file per MD5 bucket.
+ * Each file is a sequence of KVRecords (length-prefixed and CRC-protected) and is rewritten
+ * on every update. Lookups compare raw key bytes and skip other records by their length,
+ * without decoding them; rewrites copy the untouched records as raw bytes.
+ * Buckets of older versions, "k:key" / "v:value" text lines, are converted when the engine is opened.
+ *
+ * Updates are first appended to a write-ahead log, and bucket files are only forced at
+ * checkpoints, once the log reaches CHECKPOINT_SIZE. The log is replayed when the engine
+ * is opened, so an update that was synced survives a crash even if its bucket rewrite
+ * did not reach the disk.
+ *
+ * The hashes of the existing buckets are kept in a sorted index, built from the directory
+ * when the engine is opened, so that range operations only touch the buckets in the range.
+ */
+class KVBucketEngine implements IKVStorageEngine {
+
+    private static final String BUCKET_SUFFIX = ".bkt";
+    private static final String LEGACY_SUFFIX = ".txt"; // text buckets of older versions
+    private static final String TEMP_FILE = "temp.txt"; // shared rewrite file of older versions
+    private static final String WAL_FILE = "wal.log";
+    // a bucket is rewritten into its shadow file, which then atomically replaces it
+    private static final String SHADOW_SUFFIX = ".shadow";
+    // directories of hard links to the buckets seen by open cursors
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final long CHECKPOINT_SIZE = 4L << 20;
+
+    private final String dbPath;
+    private final KVCompression compression;
+    // line prefixes of legacy text buckets, "k:" and "v:"
+    private final int afterIndicator = 2;
+
+    private volatile KVWriteAheadLog wal; // opened on the first write
+    private final ReentrantLock openLock = new ReentrantLock();
+    // bucket files rewritten since the last checkpoint
+    private final Set<String> dirtyBuckets = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // shared by updates between logging and applying them, owned by checkpoints
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    // hash -> bucket file, for every bucket file on disk
+    private final ConcurrentSkipListMap<String, File> bucketIndex = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextSnapshotId = new AtomicLong();
+
+    /**
+     * Open the buckets in the given directory, replaying the write-ahead log if one is left.
+     * @param dbPath path of an existing database directory, ending with '/'
+     * @throws IOException
+     */
+    public KVBucketEngine(String dbPath) throws IOException {
+        this(dbPath, new KVStorageOptions());
+    }
+
+    /**
+     * Open the buckets in the given directory, replaying the write-ahead log if one is left.
+     * @param dbPath path of an existing database directory, ending with '/'
+     * @param options storage options
+     * @throws IOException
+     */
+    public KVBucketEngine(String dbPath, KVStorageOptions options) throws IOException {
+        this.dbPath = dbPath;
+        this.compression = KVCompression.of(options);
+        recover();
+    }
+
+    /**
+     * A key whose bucket is not in the index is answered without touching the disk.
+     */
+    public String get(String key) throws IOException {
+        File file = bucketIndex.get(KVHashRange.hashOf(key));
+        if (file == null) {
+            return null;
+        }
+        ByteBuffer bucket = readBucket(file);
+        int position = find(bucket, ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)));
+        if (position < 0) {
+            return null;
+        }
+        bucket.position(position);
+        return readRecord(bucket, file).value;
+    }
+
+    public boolean contains(String key) throws IOException {
+        return get(key) != null;
+    }
+
+    /**
+     * Keys are grouped by bucket, so that each bucket file is read once.
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws IOException {
+        Map<File, List<String>> buckets = new HashMap<>();
+        for (String key: keys) {
+            File file = bucketIndex.get(KVHashRange.hashOf(key));
+            if (file == null) {
+                continue;
+            }
+            List<String> bucketKeys = buckets.get(file);
+            if (bucketKeys == null) {
+                bucketKeys = new ArrayList<>();
+                buckets.put(file, bucketKeys);
+            }
+            bucketKeys.add(key);
+        }
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<File, List<String>> entry: buckets.entrySet()) {
+            File file = entry.getKey();
+            ByteBuffer bucket = readBucket(file);
+            for (String key: entry.getValue()) {
+                bucket.position(0);
+                int position = find(bucket, ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)));
+                if (position >= 0) {
+                    bucket.position(position);
+                    values.put(key, readRecord(bucket, file).value);
+                }
+            }
+        }
+        return values;
+    }
+
+    public KVStorageResult.ResultType put(String key, String value) throws IOException {
+        KVStorageResult.ResultType result;
+        checkpointLock.readLock().lock();
+        try {
+            logUpdate(key, value);
+            result = applyPut(key, value);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        maybeCheckpoint();
+        return result;
+    }
+
+    /**
+     * Delete the record associated with the given key.
+     * Assumptions: key != null
+     * @param key key to delete
+     * @return true if delete is successful, false otherwise
+     * @throws IOException
+     */
+    public boolean delete(String key) throws IOException {
+        if (!bucketIndex.containsKey(KVHashRange.hashOf(key))) {
+            return false;
+        }
+        boolean deleted;
+        checkpointLock.readLock().lock();
+        try {
+            logUpdate(key, null);
+            deleted = applyDelete(key);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        maybeCheckpoint();
+        return deleted;
+    }
+
+    /**
+     * Group the batch by bucket and stage the new content of every bucket it touches,
+     * then commit the batch to the log as one record and move the staged files in place.
+     * Each bucket is read and written once, and the log is forced once by sync().
+     * A crash before the commit leaves only shadow files, which recover() discards;
+     * a crash after it is completed by replaying the batch.
+     */
+    public boolean writeBatch(Map<String, String> batch) throws IOException {
+        Map<String, Map<String, String>> buckets = new HashMap<>();
+        for (Map.Entry<String, String> entry: batch.entrySet()) {
+            String path = getFilePath(entry.getKey());
+            Map<String, String> updates = buckets.get(path);
+            if (updates == null) {
+                updates = new LinkedHashMap<>();
+                buckets.put(path, updates);
+            }
+            updates.put(entry.getKey(), entry.getValue());
+        }
+
+        Map<File, File> staged = new HashMap<>(); // bucket -> new content, null if the bucket becomes empty
+        checkpointLock.readLock().lock();
+        try {
+            return commitBatch(batch, buckets, staged);
+        } finally {
+            checkpointLock.readLock().unlock();
+            maybeCheckpoint();
+        }
+    }
+
+    private boolean commitBatch(Map<String, String> batch, Map<String, Map<String, String>> buckets,
+                                Map<File, File> staged) throws IOException {
+        try {
+            for (Map.Entry<String, Map<String, String>> bucket: buckets.entrySet()) {
+                File file = new File(bucket.getKey());
+                File stage = shadowFile(file);
+                staged.put(file, stageBucket(file, bucket.getValue(), stage) ? stage : null);
+            }
+            List<ByteBuffer> records = new ArrayList<>();
+            for (Map.Entry<String, String> entry: batch.entrySet()) {
+                records.add(KVRecord.encode(entry.getKey(), entry.getValue(), compression));
+            }
+            KVWriteAheadLog wal = openLog();
+            wal.appendBatch(records);
+            // the record must be durable before the first bucket is replaced, or a crash could
+            // leave part of the batch applied with nothing to redo it; concurrent commits share the force
+            wal.sync();
+        } catch (IOException ioe) {
+            System.out.println(ioe.getLocalizedMessage());
+            for (String path: buckets.keySet()) {
+                File stage = new File(path + SHADOW_SUFFIX);
+                if (stage.exists() && !stage.delete()) {
+                    System.out.println("Failed to delete " + stage);
+                }
+            }
+            return false;
+        }
+
+        // the batch is committed, failures from here on are repaired by recover()
+        boolean applied = true;
+        for (Map.Entry<File, File> bucket: staged.entrySet()) {
+            File file = bucket.getKey();
+            dirtyBuckets.add(file.getPath());
+            if (bucket.getValue() == null) {
+                if (file.exists() && !file.delete()) {
+                    applied = false;
+                } else {
+                    bucketIndex.remove(bucketHash(file));
+                }
+                continue;
+            }
+            if (replace(bucket.getValue(), file)) {
+                bucketIndex.put(bucketHash(file), file);
+            } else {
+                applied = false;
+            }
+        }
+        if (!applied) {
+            throw new IOException("Batch committed but not fully applied");
+        }
+        return true;
+    }
+
+    /**
+     * Write a pair into its bucket file, without logging it
+     */
+    private KVStorageResult.ResultType applyPut(String key, String value) throws IOException {
+        File file = new File(getFilePath(key));
+        dirtyBuckets.add(file.getPath());
+        if (file.exists()) {
+            return updatePair(file, key, value) ?
+                    KVStorageResult.ResultType.PUT_UPDATE_SUCCESS : KVStorageResult.ResultType.PUT_UPDATE_ERROR;
+        }
+        try {
+            File shadowFile = shadowFile(file);
+            createPair(shadowFile, key, value);
+            if (!replace(shadowFile, file)) {
+                return KVStorageResult.ResultType.PUT_ERROR;
+            }
+            bucketIndex.put(bucketHash(file), file);
+            return KVStorageResult.ResultType.PUT_SUCCESS;
+        } catch (IOException ioe) {
+            return KVStorageResult.ResultType.PUT_ERROR;
+        }
+    }
+
+    /**
+     * Remove a pair from its bucket file, without logging it
+     */
+    private boolean applyDelete(String key) throws IOException {
+        boolean deleted = false;
+        File file = new File(getFilePath(key));
+        dirtyBuckets.add(file.getPath());
+        if (file.exists()) {
+            deleted = true;
+            File shadowFile = shadowFile(file);
+            // copy the old file into the new file, omitting the given key
+            int recordsCopied = writeBucket(shadowFile, Collections.<ByteBuffer>emptyList(), readBucket(file),
+                    Collections.singleton(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8))));
+
+            if (recordsCopied == 0) {
+                boolean shadowDeleted = shadowFile.delete();
+                if (file.delete()) {
+                    bucketIndex.remove(bucketHash(file));
+                } else {
+                    deleted = false;
+                }
+                if (!shadowDeleted) {
+                    deleted = false;
+                }
+            } else if (!replace(shadowFile, file)) {
+                deleted = false;
+            }
+
+        }
+        return deleted;
+    }
+
+    public HashMap<String, String> getInRange(String lowerExclusive, String upperInclusive) throws IOException {
+        HashMap<String, String> kvPairs = new HashMap<>();
+        for (NavigableMap<String, File> view: KVHashRange.subMaps(bucketIndex, lowerExclusive, upperInclusive)) {
+            for (File file: view.values()) {
+                ByteBuffer bucket = readBucket(file);
+                while (bucket.hasRemaining()) {
+                    KVRecord record = readRecord(bucket, file);
+                    kvPairs.put(record.key, record.value);
+                }
+            }
+        }
+        return kvPairs;
+    }
+
+    /**
+     * Bucket files are never modified in place, only replaced or deleted, so hard links to the
+     * buckets in the range are a snapshot of it that costs no copying.
+     */
+    public IKVCursor openCursor(String lowerExclusive, String upperInclusive) throws IOException {
+        File dir = new File(dbPath + SNAPSHOT_PREFIX + nextSnapshotId.getAndIncrement());
+        if (!dir.mkdir()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        List<File> snapshot = new ArrayList<>();
+        try {
+            for (NavigableMap<String, File> view: KVHashRange.subMaps(bucketIndex, lowerExclusive, upperInclusive)) {
+                for (File file: view.values()) {
+                    File link = new File(dir, file.getName());
+                    try {
+                        Files.createLink(link.toPath(), file.toPath());
+                    } catch (UnsupportedOperationException | IOException e) {
+                        // no hard links on this file system
+                        Files.copy(file.toPath(), link.toPath());
+                    }
+                    snapshot.add(link);
+                }
+            }
+        } catch (IOException ioe) {
+            deleteSnapshot(dir);
+            throw ioe;
+        }
+        return new BucketCursor(dir, snapshot);
+    }
+
+    /**
+     * Cursor that reads the linked buckets of a snapshot one at a time
+     */
+    private class BucketCursor implements IKVCursor {
+        private final File dir;
+        private final Iterator<File> buckets;
+        private File file;
+        private ByteBuffer bucket;
+        private String key;
+        private String value;
+
+        BucketCursor(File dir, List<File> buckets) {
+            this.dir = dir;
+            this.buckets = buckets.iterator();
+        }
+
+        public boolean next() throws IOException {
+            while (bucket == null || !bucket.hasRemaining()) {
+                if (!buckets.hasNext()) {
+                    key = null;
+                    value = null;
+                    return false;
+                }
+                file = buckets.next();
+                bucket = readBucket(file);
+            }
+            KVRecord record = readRecord(bucket, file);
+            key = record.key;
+            value = record.value;
+            return true;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void close() {
+            bucket = null;
+            deleteSnapshot(dir);
+        }
+    }
+
+    public void deleteInRange(String lowerExclusive, String upperInclusive) {
+        try {
+            // the log must not bring back pairs whose bucket files are deleted below
+            checkpoint();
+        } catch (IOException e) {
+            // TODO: logging
+            System.out.println("Failed to delete range: " + e.getLocalizedMessage());
+            return;
+        }
+        for (NavigableMap<String, File> view: KVHashRange.subMaps(bucketIndex, lowerExclusive, upperInclusive)) {
+            Iterator<File> it = view.values().iterator();
+            while (it.hasNext()) {
+                File file = it.next();
+                if (file.delete()) {
+                    it.remove();
+                } else {
+                    // TODO: logging
+                    System.out.println("Failed to delete " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Buckets are rewritten on every update, so they never hold stale data to compact.
+     */
+    public void compact() {
+    }
+
+    public KVCompactionStats getCompactionStats() {
+        return new KVCompactionStats.Counters().snapshot(0);
+    }
+
+    public void sync() throws IOException {
+        KVWriteAheadLog wal = this.wal;
+        if (wal != null) {
+            wal.sync();
+        }
+    }
+
+    public void clear() {
+        closeLog(false);
+        dirtyBuckets.clear();
+        bucketIndex.clear();
+        File[] files = new File(dbPath).listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (file.getName().startsWith(SNAPSHOT_PREFIX)) {
+                    deleteSnapshot(file);
+                } else if (!file.delete()) {
+                    // TODO: logging
+                    System.out.println("Failed to delete " + file);
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        // every other operation closes its own files
+        closeLog(true);
+    }
+
+    /**
+     * Convert legacy buckets, index the buckets, then replay the write-ahead log left by
+     * the last run and checkpoint it away.
+     * Replaying is idempotent, so updates that already reached their bucket are harmless.
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        File[] files = new File(dbPath).listFiles();
+        if (files != null) {
+            for (File shadow: files) {
+                // rewrites or batches that never replaced their bucket
+                String name = shadow.getName();
+                if ((name.endsWith(SHADOW_SUFFIX) || name.equals(TEMP_FILE)) && !shadow.delete()) {
+                    System.out.println("Failed to delete " + shadow);
+                } else if (name.startsWith(SNAPSHOT_PREFIX)) {
+                    // cursors left open by the previous run
+                    deleteSnapshot(shadow);
+                }
+            }
+        }
+        convertLegacyBuckets();
+        files = new File(dbPath).listFiles();
+        if (files != null) {
+            for (File bucket: files) {
+                String hash = bucketHash(bucket);
+                if (hash != null) {
+                    bucketIndex.put(hash, bucket);
+                }
+            }
+        }
+        File file = new File(dbPath + WAL_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        wal = new KVWriteAheadLog(file);
+        List<KVRecord> records = wal.replay();
+        for (KVRecord record: records) {
+            if (record.isTombstone()) {
+                applyDelete(record.key);
+            } else {
+                applyPut(record.key, record.value);
+            }
+        }
+        checkpoint();
+    }
+
+    /**
+     * One-time conversion of the text buckets of older versions into binary buckets.
+     * Every bucket is converted through its shadow file and forced, and the text buckets are
+     * deleted once the directory is forced, so that a crash at any point leaves either
+     * format intact; a text bucket next to its binary bucket is a leftover and is deleted.
+     * @throws IOException
+     */
+    private void convertLegacyBuckets() throws IOException {
+        File[] files = new File(dbPath).listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> converted = new ArrayList<>();
+        for (File legacy: files) {
+            String name = legacy.getName();
+            if (!name.endsWith(LEGACY_SUFFIX) || name.equals(TEMP_FILE)) {
+                continue;
+            }
+            File file = new File(dbPath + name.substring(0, name.length() - LEGACY_SUFFIX.length()) + BUCKET_SUFFIX);
+            converted.add(legacy);
+            if (file.exists()) {
+                continue;
+            }
+            List<ByteBuffer> records = new ArrayList<>();
+            BufferedReader reader = new BufferedReader(new FileReader(legacy));
+            try {
+                String key, val;
+                while ((key = reader.readLine()) != null && (val = reader.readLine()) != null) {
+                    records.add(KVRecord.encode(key.substring(afterIndicator), val.substring(afterIndicator), compression));
+                }
+            } finally {
+                reader.close();
+            }
+            File shadowFile = shadowFile(file);
+            writeBucket(shadowFile, records, ByteBuffer.allocate(0), Collections.<ByteBuffer>emptySet());
+            FileChannel channel = FileChannel.open(shadowFile.toPath(), StandardOpenOption.WRITE);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+            if (!replace(shadowFile, file)) {
+                throw new IOException("Failed to convert " + legacy);
+            }
+        }
+        if (converted.isEmpty()) {
+            return;
+        }
+        forceDirectory();
+        for (File legacy: converted) {
+            if (!legacy.delete()) {
+                // TODO: logging
+                System.out.println("Failed to delete " + legacy);
+            }
+        }
+        System.out.println("Converted " + converted.size() + " buckets to the binary format");
+    }
+
+    /**
+     * Append an update to the write-ahead log; it is forced by sync().
+     * @param key given key
+     * @param value given value; null for a delete
+     * @throws IOException
+     */
+    private void logUpdate(String key, String value) throws IOException {
+        openLog().append(KVRecord.encode(key, value, compression));
+    }
+
+    /**
+     * @return the write-ahead log, created on first use
+     * @throws IOException
+     */
+    private KVWriteAheadLog openLog() throws IOException {
+        KVWriteAheadLog log = wal;
+        if (log == null) {
+            openLock.lock();
+            try {
+                log = wal;
+                if (log == null) {
+                    log = new KVWriteAheadLog(new File(dbPath + WAL_FILE));
+                    wal = log;
+                }
+            } finally {
+                openLock.unlock();
+            }
+        }
+        return log;
+    }
+
+    private void maybeCheckpoint() {
+        KVWriteAheadLog log = wal;
+        if (log == null || log.size() < CHECKPOINT_SIZE) {
+            return;
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            // the log keeps growing and the checkpoint is retried by the next update
+            System.out.println("Checkpoint failed: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Force every bucket rewritten since the last checkpoint, then empty the log.
+     * Waits for the updates that are logged but not applied yet.
+     * @throws IOException
+     */
+    private void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            if (wal != null && wal.size() > 0) {
+                forceBuckets();
+                wal.truncate();
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    private void forceBuckets() throws IOException {
+        for (String path: dirtyBuckets) {
+            File file = new File(path);
+            if (file.exists()) {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                try {
+                    channel.force(true);
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+        forceDirectory();
+        dirtyBuckets.clear();
+    }
+
+    /**
+     * Make the renames and deletes in the database directory durable
+     */
+    private void forceDirectory() {
+        try {
+            FileChannel dir = FileChannel.open(Paths.get(dbPath), StandardOpenOption.READ);
+            try {
+                dir.force(true);
+            } finally {
+                dir.close();
+            }
+        } catch (IOException e) {
+            // directories cannot be opened on every platform
+        }
+    }
+
+    /**
+     * @param sync whether pending updates are forced before closing
+     */
+    private void closeLog(boolean sync) {
+        KVWriteAheadLog wal = this.wal;
+        if (wal == null) {
+            return;
+        }
+        this.wal = null;
+        try {
+            if (sync) {
+                wal.sync();
+            }
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+        }
+        try {
+            wal.close();
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Compute the file path given a key.
+     * Assumptions:
+     * 1. key != null
+     * @param key given key
+     * @return file path
+     */
+    protected String getFilePath(String key) {
+        return dbPath + KVHashRange.hashOf(key) + BUCKET_SUFFIX;
+    }
+
+    /**
+     * @param file file in the database directory
+     * @return the hash the bucket file stands for; null if it is not a bucket file
+     */
+    private String bucketHash(File file) {
+        String fileName = file.getName();
+        if (!fileName.endsWith(BUCKET_SUFFIX) || fileName.equals(TEMP_FILE)) {
+            return null;
+        }
+        return fileName.substring(0, fileName.length() - BUCKET_SUFFIX.length());
+    }
+
+    /**
+     * Persist key-value pair to disk by writing them to the given file.
+     * @param file given file
+     * @param key given key
+     * @param value given value
+     * @throws IOException
+     */
+    protected void createPair(File file, String key, String value) throws IOException {
+        writeBucket(file, Collections.singletonList(KVRecord.encode(key, value, compression)), ByteBuffer.allocate(0),
+                Collections.<ByteBuffer>emptySet());
+    }
+
+    /**
+     * Update the key-value pair in the given file.
+     * If the pair does not exist, it creates the pair.
+     * The updated pair is put in the beiginning of the file
+     * for heuristic reason.
+     * Assumptions:
+     * 1. inputs are valid
+     * @param file given file
+     * @param key given key
+     * @param value new value associated with the key
+     * @return true if the update is successful, false otherwise
+     * @throws IOException
+     */
+    protected boolean updatePair(File file, String key, String value) throws IOException {
+        File shadowFile = shadowFile(file);
+        // put the given pair at the beginning of the file, then copy the old file,
+        // omitting the old record of the given key
+        writeBucket(shadowFile, Collections.singletonList(KVRecord.encode(key, value, compression)), readBucket(file),
+                Collections.singleton(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8))));
+        return replace(shadowFile, file);
+    }
+
+    /**
+     * Atomically replace a bucket file with its shadow file, so that readers and crashes
+     * see either the old or the new content.
+     * @param shadowFile new content
+     * @param file bucket file
+     * @return true if the bucket file now has the new content
+     */
+    protected boolean replace(File shadowFile, File file) {
+        try {
+            Files.move(shadowFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException ioe) {
+            System.out.println(ioe.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    private static void deleteSnapshot(File dir) {
+        File[] links = dir.listFiles();
+        if (links != null) {
+            for (File link: links) {
+                if (!link.delete()) {
+                    // TODO: logging
+                    System.out.println("Failed to delete " + link);
+                }
+            }
+        }
+        if (dir.exists() && !dir.delete()) {
+            // TODO: logging
+            System.out.println("Failed to delete " + dir);
+        }
+    }
+
+    /**
+     * @param file bucket file
+     * @return the file a bucket is rewritten into; only one operation rewrites a bucket at a time
+     */
+    private File shadowFile(File file) {
+        return new File(file.getPath() + SHADOW_SUFFIX);
+    }
+
+    /**
+     * Write the content of a bucket after a batch of updates into another file:
+     * the pairs put by the batch first, then the untouched pairs of the bucket.
+     * @param file bucket file, may not exist
+     * @param updates updates of the bucket; a null value deletes the key
+     * @param stage file to write
+     * @return true if the new content is not empty; otherwise stage is not left behind
+     * @throws IOException
+     */
+    protected boolean stageBucket(File file, Map<String, String> updates, File stage) throws IOException {
+        List<ByteBuffer> records = new ArrayList<>();
+        Set<ByteBuffer> updatedKeys = new HashSet<>();
+        for (Map.Entry<String, String> update: updates.entrySet()) {
+            if (update.getValue() != null) {
+                records.add(KVRecord.encode(update.getKey(), update.getValue(), compression));
+            }
+            updatedKeys.add(ByteBuffer.wrap(update.getKey().getBytes(StandardCharsets.UTF_8)));
+        }
+        ByteBuffer old = file.exists() ? readBucket(file) : ByteBuffer.allocate(0);
+        int pairs = writeBucket(stage, records, old, updatedKeys);
+        if (pairs == 0 && !stage.delete()) {
+            throw new IOException("Failed to delete " + stage);
+        }
+        return pairs > 0;
+    }
+
+    /**
+     * Write the given records into a file, followed by the records of an old bucket whose
+     * key is not omitted. Old records are copied as raw bytes, without decoding them.
+     * @param file file to write
+     * @param records encoded records to write first
+     * @param old content of the old bucket
+     * @param omittedKeys raw key bytes of the old records to leave out
+     * @return number of records written
+     * @throws IOException if the old bucket is corrupted
+     */
+    protected int writeBucket(File file, List<ByteBuffer> records, ByteBuffer old, Set<ByteBuffer> omittedKeys)
+            throws IOException {
+        int written = 0;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            for (ByteBuffer record: records) {
+                out.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+                ++written;
+            }
+            int position = old.position();
+            while (position < old.limit()) {
+                int length = KVRecord.peekLength(old, position);
+                if (length < 0) {
+                    throw new IOException("Corrupted bucket at " + position);
+                }
+                if (!omittedKeys.contains(KVRecord.peekKey(old, position))) {
+                    out.write(old.array(), old.arrayOffset() + position, length);
+                    ++written;
+                }
+                position += length;
+            }
+        } finally {
+            out.close();
+        }
+        return written;
+    }
+
+    /**
+     * Find the record of a key in a bucket. Keys are compared as raw bytes and the
+     * other records are skipped by their length, without reading their values.
+     * @param bucket content of the bucket
+     * @param key raw key bytes
+     * @return absolute position of the record; -1 if the bucket does not hold the key
+     * @throws IOException if the bucket is corrupted
+     */
+    private static int find(ByteBuffer bucket, ByteBuffer key) throws IOException {
+        int position = bucket.position();
+        while (position < bucket.limit()) {
+            int length = KVRecord.peekLength(bucket, position);
+            if (length < 0) {
+                throw new IOException("Corrupted bucket at " + position);
+            }
+            if (KVRecord.peekKey(bucket, position).equals(key)) {
+                return position;
+            }
+            position += length;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the content of a bucket file, in one read
+     * @throws IOException
+     */
+    private static ByteBuffer readBucket(File file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Read the record at the position of a bucket and move past it.
+     * @param bucket content of the bucket
+     * @param file bucket file, for error messages
+     * @return the record
+     * @throws IOException if the record is corrupted or its value cannot be decompressed
+     */
+    private static KVRecord readRecord(ByteBuffer bucket, File file) throws IOException {
+        KVRecord record;
+        try {
+            record = KVRecord.read(bucket);
+        } catch (UncheckedIOException e) {
+            throw new IOException("Cannot read bucket " + file, e.getCause());
+        }
+        if (record == null) {
+            throw new IOException("Corrupted bucket " + file);
+        }
+        return record;
+    }
+}
@@ -1,31 +1,47 @@
 package com.company;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by tianqiliu on 2018-01-16.
  */
 
 /**
- * This is a non thread-safe cache class
+ * This is a non thread-safe cache class, but for getKV, markHit and inCache, which may run concurrently
+ * with the other methods; KVConcurrentCache relies on it.
+ * Hits, updates, insertions, evictions and deletions are O(1) under every strategy.
  */
 public class KVCache {
 
     private int remainSize;
     private int cacheCapacity;
     private final IKVServer.CacheStrategy replacePolicy;
-    private HashMap<String, String> cache; // key is the "key", value is the "value"
+    private ConcurrentHashMap<String, CacheNode> cache; // key is the "key", the node holds the "value"
 
-    // maintain the order for cache replacement policy
-    // LFU: least is at head; LRU: least is at head
+    // maintain the order for cache replacement policy, the map leads to a node in O(1)
     // FIFO: put to tail, pop from head; None: same as FIFO
-    private LinkedList<CacheNode> list = new LinkedList<>();
+    // LRU: least recent is at head
+    // LFU: buckets of equal frequency, least frequent then least recent is at head
+    // TinyLFU: LRU window, then frequency-filtered admission into a segmented LRU
+    // ARC: LRU lists of nodes seen once and seen again, with ghost lists steering their split
+    // ClockPro: clock of hot and cold nodes, hits only set a reference bit
+    private final KVCachePolicy policy;
 
 
     public KVCache(int cacheCapacity, IKVServer.CacheStrategy replacePolicy) {
+        this(cacheCapacity, replacePolicy, 0);
+    }
+
+    /**
+     * @param cacheCapacity capacity of the cache
+     * @param replacePolicy replacement strategy
+     * @param decayInterval under LFU, number of accesses after which every frequency is halved, so
+     *                      that keys which were hot long ago do not stay forever; 0 to never decay
+     */
+    public KVCache(int cacheCapacity, IKVServer.CacheStrategy replacePolicy, int decayInterval) {
+        if (decayInterval < 0) {
+            throw new IllegalArgumentException("Decay interval cannot be negative");
+        }
         // cache setup
         cacheCapacity >>= 1;
         if (cacheCapacity < 1) {
@@ -37,7 +53,27 @@ public class KVCache {
         this.remainSize = cacheCapacity;
         this.cacheCapacity = cacheCapacity;
         this.replacePolicy = replacePolicy;
-        this.cache = new HashMap<>();
+        this.cache = new ConcurrentHashMap<>();
+        switch (replacePolicy) {
+            case LRU:
+                policy = new KVRecencyPolicy(true);
+                break;
+            case LFU:
+                policy = new KVFrequencyList(decayInterval);
+                break;
+            case TinyLFU:
+                policy = new KVTinyLFUPolicy(cacheCapacity);
+                break;
+            case ARC:
+                policy = new KVArcPolicy(cacheCapacity);
+                break;
+            case ClockPro:
+                policy = new KVClockProPolicy(cacheCapacity);
+                break;
+            default:
+                policy = new KVRecencyPolicy(false);
+                break;
+        }
     }
 
     /**
@@ -53,18 +89,25 @@ public class KVCache {
             return;
         }
 
-        String val = cache.get(key);
-        if (val == null) {
+        CacheNode node = cache.get(key);
+        if (node == null) {
+            policy.miss(key);
             if (remainSize < value.length()) {
                 evict(value.length());
             }
             insert(key, value);
         } else {
-            int oldLen = val.length(), newLen = value.length();
+            int oldLen = node.value.length(), newLen = value.length();
             if (remainSize + oldLen < newLen) {
-                evict(newLen - oldLen);
+                // put it back as a new pair, so that the eviction cannot pick the node itself
+                deleteFromCache(key);
+                if (remainSize < newLen) {
+                    evict(newLen);
+                }
+                insert(key, value);
+            } else {
+                update(node, value, newLen - oldLen);
             }
-            update(key, value, newLen - oldLen);
         }
     }
 
@@ -74,7 +117,8 @@ public class KVCache {
      * @return value associated with the key
      */
     public String getKV(String key) {
-        return cache.get(key);
+        CacheNode node = cache.get(key);
+        return node == null ? null : node.value;
     }
 
     /**
@@ -86,15 +130,19 @@ public class KVCache {
      * 2. the target node is already in the list
      */
     public void updateOrderList(String key) {
-        CacheNode node = new CacheNode(key);
-        switch (replacePolicy) {
-            case LRU:
-                int i = list.indexOf(node);
-                node = list.remove(i);
-                list.addLast(node);
-            case LFU:
-                updateLFUList(node);
-        }
+        policy.touch(cache.get(key));
+    }
+
+    /**
+     * Record a hit on the given key without blocking, if the strategy allows it: ClockPro only
+     * sets a reference bit. Like getKV, this may run concurrently with the other methods.
+     * @param key key of the data
+     * @return false if the hit must be recorded with updateOrderList instead
+     */
+    public boolean markHit(String key) {
+        CacheNode node = cache.get(key);
+        // a node evicted meanwhile needs no record
+        return node == null || policy.mark(node);
     }
 
     /**
@@ -121,7 +169,7 @@ public class KVCache {
      * Remove everything in the cache
      */
     public void clearCache() {
-        list.clear();
+        policy.clear();
         cache.clear();
         remainSize = cacheCapacity;
     }
@@ -133,12 +181,10 @@ public class KVCache {
      * @param key key to remove
      */
     public void deleteFromCache(String key) {
-        String val = cache.remove(key);
-        if (val != null) {
-            remainSize += val.length();
-            CacheNode node = new CacheNode(key);
-            int i = list.indexOf(node);
-            list.remove(i);
+        CacheNode node = cache.remove(key);
+        if (node != null) {
+            remainSize += node.value.length();
+            policy.remove(node);
         }
     }
 
@@ -151,9 +197,9 @@ public class KVCache {
      */
     private void evict(int requiredSize) {
         while (remainSize < requiredSize) {
-            CacheNode node = list.poll();
-            String removedVal = cache.remove(node.key);
-            remainSize += removedVal.length();
+            CacheNode node = policy.evict();
+            cache.remove(node.key);
+            remainSize += node.value.length();
         }
     }
 
@@ -166,68 +212,25 @@ public class KVCache {
      * @param value the value of pair
      */
     private void insert(String key, String value) {
-        CacheNode node = new CacheNode(key);
-
-        if (replacePolicy == IKVServer.CacheStrategy.LFU) {
-            list.addFirst(node);
-        } else {
-            list.addLast(node);
-        }
-
-        cache.put(key, value);
+        CacheNode node = new CacheNode(key, value);
+        cache.put(key, node);
+        policy.insert(node);
         remainSize -= value.length();
     }
 
     /**
-     * Update the pair with the given key
+     * Update the pair of the given node
      * Assumptions:
-     * 1. the pair already exists in the cache
+     * 1. the node is in the cache
      * 2. the cache is big enough
-     * @param key key of the pair
+     * @param node node of the pair
      * @param value new value of the pair
      * @param changeInSize the total change of the cacheSize = newLen - oldLen of the updated element
      */
-    private void update(String key, String value, int changeInSize) {
-        CacheNode node = new CacheNode(key);
-
-        if (replacePolicy == IKVServer.CacheStrategy.LRU) {
-            list.remove(node);
-            list.add(node);
-        } else if (replacePolicy == IKVServer.CacheStrategy.LFU) {
-            updateLFUList(node);
-        }
-        cache.put(key, value);
+    private void update(CacheNode node, String value, int changeInSize) {
+        node.value = value;
+        policy.touch(node);
         remainSize -= changeInSize;
-
-    }
-
-    /**
-     * Update the position and frequency of the node with the given key
-     * Assumptions:
-     * 1. the given node is already in the list
-     * @param node the node to be updated
-     */
-    private void updateLFUList(CacheNode node) {
-        int i = list.indexOf(node);
-        node = list.remove(i);
-        ++(node.freq);
-        insertIntoLFUList(node);
-    }
-
-    /**
-     * A helper function for inserting cache node into LFU list in the correct order
-     * @param node the node to be updated in the order list
-     */
-    private void insertIntoLFUList(CacheNode node) {
-        int len = list.size();
-        int i = 0;
-        while (i < len) {
-            if (node.freq <= list.get(i).freq) {
-                break;
-            }
-            ++i;
-        }
-        list.add(i, node);
     }
 
 }
@@ -0,0 +1,126 @@
+package com.company;
+
+/**
+ * Doubly linked list of cache nodes whose links live in the nodes themselves, so that a node
+ * found through the cache map is moved or removed in O(1) without searching the list.
+ * A node belongs to at most one list at a time.
+ * This class is not thread-safe.
+ */
+class KVCacheList {
+
+    private CacheNode head;
+    private CacheNode tail;
+    private int size;
+
+    /**
+     * @return the node at the head; null if the list is empty
+     */
+    CacheNode peekFirst() {
+        return head;
+    }
+
+    /**
+     * Remove the node at the head
+     * @return the removed node; null if the list is empty
+     */
+    CacheNode pollFirst() {
+        CacheNode node = head;
+        if (node != null) {
+            remove(node);
+        }
+        return node;
+    }
+
+    /**
+     * @param node node in no list
+     */
+    void addFirst(CacheNode node) {
+        node.prev = null;
+        node.next = head;
+        if (head == null) {
+            tail = node;
+        } else {
+            head.prev = node;
+        }
+        head = node;
+        ++size;
+    }
+
+    /**
+     * @param node node in no list
+     */
+    void addLast(CacheNode node) {
+        node.next = null;
+        node.prev = tail;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+        }
+        tail = node;
+        ++size;
+    }
+
+    /**
+     * @param next node of this list
+     * @param node node in no list, to put right before next
+     */
+    void addBefore(CacheNode next, CacheNode node) {
+        if (next == head) {
+            addFirst(node);
+            return;
+        }
+        node.next = next;
+        node.prev = next.prev;
+        next.prev.next = node;
+        next.prev = node;
+        ++size;
+    }
+
+    /**
+     * @param node node of this list
+     */
+    void remove(CacheNode node) {
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        --size;
+    }
+
+    /**
+     * @param node node of this list, to put at the tail
+     */
+    void moveToLast(CacheNode node) {
+        if (node != tail) {
+            remove(node);
+            addLast(node);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        // unlink the nodes so that those still referenced elsewhere do not keep the others alive
+        CacheNode node = head;
+        while (node != null) {
+            CacheNode next = node.next;
+            node.prev = null;
+            node.next = null;
+            node = next;
+        }
+        head = null;
+        tail = null;
+        size = 0;
+    }
+}
@@ -0,0 +1,46 @@
+package com.company;
+
+/**
+ * Replacement strategy of a KVCache: which node to evict next.
+ * The policy only orders the nodes; KVCache owns the map and the capacity, and calls the policy
+ * under its own exclusion, so implementations need not be thread-safe.
+ */
+interface KVCachePolicy {
+
+    /**
+     * Called when a key not in the cache is about to be put, before room is made for it
+     * @param key given key
+     */
+    void miss(String key);
+
+    /**
+     * @param node node just put into the cache, its value set
+     */
+    void insert(CacheNode node);
+
+    /**
+     * Record an access: a hit, or an update, in which case the value is already replaced
+     * @param node node of the cache
+     */
+    void touch(CacheNode node);
+
+    /**
+     * Record a hit without exclusion, concurrently with the other methods
+     * @param node node of the cache, or one it just evicted
+     * @return false if the policy cannot, the hit is then recorded by touch
+     */
+    boolean mark(CacheNode node);
+
+    /**
+     * @param node node of the cache which its user deletes
+     */
+    void remove(CacheNode node);
+
+    /**
+     * Choose the node to evict and drop it from the policy
+     * @return the node, which KVCache then removes; null if the policy holds no node
+     */
+    CacheNode evict();
+
+    void clear();
+}
@@ -0,0 +1,294 @@
+package com.company;
+
+import java.util.HashMap;
+
+/**
+ * CLOCK-Pro strategy of KVCache.
+ *
+ * Nodes sit on a single clock in the order they entered it, and a hit only sets their reference
+ * bit, without lock or reordering. A node is hot, or cold; a cold node may be in a test period,
+ * during which its key stays on the clock as a non-resident node once it is evicted. Three hands
+ * sweep the clock:
+ * - the cold hand evicts the first cold node whose bit is clear; a cold node found referenced is
+ *   promoted to hot if it is in its test period, and starts a test period otherwise,
+ * - the hot hand demotes the first hot node whose bit is clear, once the hot nodes are over
+ *   their share, and ends the test periods it passes,
+ * - the test hand ends test periods and drops non-resident nodes once they outweigh the capacity.
+ * A miss on a non-resident key shows cold nodes were evicted too early: the key comes back hot and
+ * the share of cold nodes grows. A test period ending without a hit shrinks it.
+ * Like LIRS, this keeps a loop slightly larger than the cache from flushing it.
+ * Weights are value lengths, as for the capacity of KVCache.
+ * This class is not thread-safe, but for mark.
+ */
+class KVClockProPolicy implements KVCachePolicy {
+
+    private static final int HOT = 0;
+    private static final int COLD = 1;
+    private static final int COLD_TEST = 2; // cold, in its test period
+    private static final int NON_RESIDENT = 3; // evicted, in its test period
+
+    private final KVCacheList clock = new KVCacheList(); // circular, from the oldest entry
+    private final HashMap<String, CacheNode> nonResident = new HashMap<>();
+    private final int capacity;
+    private final int minColdTarget;
+    private CacheNode handHot;
+    private CacheNode handCold;
+    private CacheNode handTest;
+    private int coldTarget; // weight the cold resident nodes should have
+    private int hotWeight;
+    private int hotCount;
+    private int coldCount; // resident
+    private int nonResidentWeight;
+
+    /**
+     * @param capacity capacity of the cache
+     */
+    KVClockProPolicy(int capacity) {
+        this.capacity = capacity;
+        this.minColdTarget = Math.max(1, capacity / 100);
+        this.coldTarget = minColdTarget;
+    }
+
+    public void miss(String key) {
+    }
+
+    /**
+     * A key found non-resident enters hot and grows the share of cold nodes, any other enters cold
+     * in its test period
+     */
+    public void insert(CacheNode node) {
+        node.weight = node.value.length();
+        node.referenced = false;
+        CacheNode ghost = nonResident.remove(node.key);
+        if (ghost != null) {
+            coldTarget = Math.min(capacity - minColdTarget, coldTarget + Math.max(1, ghost.weight));
+            nonResidentWeight -= ghost.weight;
+            unlink(ghost);
+            node.region = HOT;
+            hotWeight += node.weight;
+            ++hotCount;
+            enter(node);
+            balanceHot();
+        } else {
+            node.region = COLD_TEST;
+            ++coldCount;
+            enter(node);
+        }
+        while (nonResidentWeight > capacity && nonResident.size() > 0) {
+            runHandTest();
+        }
+    }
+
+    public void touch(CacheNode node) {
+        int delta = node.value.length() - node.weight;
+        node.weight += delta;
+        if (node.region == HOT) {
+            hotWeight += delta;
+        }
+        node.referenced = true;
+    }
+
+    public boolean mark(CacheNode node) {
+        node.referenced = true;
+        return true;
+    }
+
+    public void remove(CacheNode node) {
+        if (node.region == HOT) {
+            hotWeight -= node.weight;
+            --hotCount;
+        } else {
+            --coldCount;
+        }
+        unlink(node);
+    }
+
+    /**
+     * Run the cold hand up to a cold node whose reference bit is clear. Hits mark nodes
+     * concurrently, so after two laps the bits are ignored.
+     */
+    public CacheNode evict() {
+        int budget = 2 * clock.size();
+        while (true) {
+            if (coldCount == 0) {
+                if (hotCount == 0) {
+                    return null;
+                }
+                runHandHot();
+                continue;
+            }
+            CacheNode node = handCold;
+            while (node.region != COLD && node.region != COLD_TEST) {
+                node = next(node);
+            }
+            handCold = next(node);
+            if (node.referenced && budget-- > 0) {
+                node.referenced = false;
+                if (node.region == COLD_TEST) {
+                    node.region = HOT;
+                    --coldCount;
+                    hotWeight += node.weight;
+                    ++hotCount;
+                    reenter(node);
+                    balanceHot();
+                } else {
+                    node.region = COLD_TEST;
+                    reenter(node);
+                }
+                continue;
+            }
+            --coldCount;
+            if (node.region == COLD_TEST) {
+                // the key stays on the clock, in place of the node
+                CacheNode ghost = new CacheNode(node.key);
+                ghost.weight = node.weight;
+                ghost.region = NON_RESIDENT;
+                clock.addBefore(node, ghost);
+                replaceHands(node, ghost);
+                nonResident.put(ghost.key, ghost);
+                nonResidentWeight += ghost.weight;
+            }
+            unlink(node);
+            while (nonResidentWeight > capacity && nonResident.size() > 0) {
+                runHandTest();
+            }
+            return node;
+        }
+    }
+
+    public void clear() {
+        clock.clear();
+        nonResident.clear();
+        handHot = null;
+        handCold = null;
+        handTest = null;
+        coldTarget = minColdTarget;
+        hotWeight = 0;
+        hotCount = 0;
+        coldCount = 0;
+        nonResidentWeight = 0;
+    }
+
+    /**
+     * Demote hot nodes while they are over their share
+     */
+    private void balanceHot() {
+        while (hotCount > 0 && hotWeight > capacity - coldTarget) {
+            runHandHot();
+        }
+    }
+
+    /**
+     * Run the hot hand up to a hot node whose reference bit is clear and demote it, ending the
+     * test periods the hand passes. After two laps the bits are ignored.
+     */
+    private void runHandHot() {
+        int budget = 2 * clock.size();
+        while (true) {
+            CacheNode node = handHot;
+            handHot = next(node);
+            switch (node.region) {
+                case HOT:
+                    if (node.referenced && budget-- > 0) {
+                        node.referenced = false;
+                        break;
+                    }
+                    node.region = COLD;
+                    hotWeight -= node.weight;
+                    --hotCount;
+                    ++coldCount;
+                    return;
+                case COLD_TEST:
+                    endTest(node);
+                    break;
+                case NON_RESIDENT:
+                    endTest(node);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Run the test hand up to a non-resident node and drop it, ending the test periods the hand
+     * passes
+     */
+    private void runHandTest() {
+        while (true) {
+            CacheNode node = handTest;
+            handTest = next(node);
+            if (node.region == NON_RESIDENT) {
+                endTest(node);
+                return;
+            }
+            if (node.region == COLD_TEST) {
+                endTest(node);
+            }
+        }
+    }
+
+    /**
+     * End the test period of a node without a hit, which shrinks the share of cold nodes
+     */
+    private void endTest(CacheNode node) {
+        coldTarget = Math.max(minColdTarget, coldTarget - Math.max(1, node.weight));
+        if (node.region == NON_RESIDENT) {
+            nonResident.remove(node.key);
+            nonResidentWeight -= node.weight;
+            unlink(node);
+        } else {
+            node.region = COLD;
+        }
+    }
+
+    /**
+     * Put a node in no list on the clock, as its newest entry: right behind the hot hand
+     */
+    private void enter(CacheNode node) {
+        if (handHot == null) {
+            clock.addLast(node);
+            handHot = node;
+            handCold = node;
+            handTest = node;
+        } else {
+            clock.addBefore(handHot, node);
+        }
+    }
+
+    private void reenter(CacheNode node) {
+        unlink(node);
+        enter(node);
+    }
+
+    /**
+     * Take a node off the clock, moving the hands which point to it to the next node
+     */
+    private void unlink(CacheNode node) {
+        CacheNode next = clock.size() > 1 ? next(node) : null;
+        if (handHot == node) {
+            handHot = next;
+        }
+        if (handCold == node) {
+            handCold = next;
+        }
+        if (handTest == node) {
+            handTest = next;
+        }
+        clock.remove(node);
+    }
+
+    private void replaceHands(CacheNode node, CacheNode replacement) {
+        if (handHot == node) {
+            handHot = replacement;
+        }
+        if (handCold == node) {
+            handCold = replacement;
+        }
+        if (handTest == node) {
+            handTest = replacement;
+        }
+    }
+
+    private CacheNode next(CacheNode node) {
+        return node.next != null ? node.next : clock.peekFirst();
+    }
+}
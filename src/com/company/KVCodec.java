@@ -0,0 +1,39 @@
+package com.company;
+
+import java.io.IOException;
+
+/**
+ * Value compression codec, selected by name with KVStorageOptions.setCompression.
+ * Deflate and LZ4 are built in; other codecs are found with java.util.ServiceLoader, so a codec
+ * is added by putting a jar with an implementation and a
+ * META-INF/services/com.company.KVCodec entry on the classpath.
+ * Implementations must be thread-safe.
+ */
+public interface KVCodec {
+
+    /**
+     * @return name the codec is selected by
+     */
+    public String getName();
+
+    /**
+     * @return id stored in every record compressed by this codec, between 1 and 127.
+     * Ids 1 to 15 are reserved for built-in codecs; an id must never be reused by another codec.
+     */
+    public int getId();
+
+    /**
+     * @param src bytes to compress
+     * @return compressed bytes, possibly larger than src
+     */
+    public byte[] compress(byte[] src);
+
+    /**
+     * @param src compressed bytes
+     * @param offset offset of the compressed bytes in src
+     * @param length number of compressed bytes
+     * @param dst array of exactly the uncompressed size, to fill
+     * @throws IOException if the bytes were not compressed by this codec
+     */
+    public void decompress(byte[] src, int offset, int length, byte[] dst) throws IOException;
+}
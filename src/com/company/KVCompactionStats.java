@@ -0,0 +1,131 @@
+package com.company;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshot of the background compaction of a storage engine, see KVSimpleStorage.getCompactionStats.
+ * Debt is the number of bytes the compactor would still have to rewrite or reclaim to bring
+ * the files back within their targets; it grows when compaction falls behind the writes.
+ */
+public final class KVCompactionStats {
+
+    private final long compactions;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long bytesReclaimed;
+    private final long debtBytes;
+    private final long runningTotalBytes;
+    private final long runningDoneBytes;
+
+    KVCompactionStats(long compactions, long bytesRead, long bytesWritten, long bytesReclaimed,
+                      long debtBytes, long runningTotalBytes, long runningDoneBytes) {
+        this.compactions = compactions;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.bytesReclaimed = bytesReclaimed;
+        this.debtBytes = debtBytes;
+        this.runningTotalBytes = runningTotalBytes;
+        this.runningDoneBytes = runningDoneBytes;
+    }
+
+    /**
+     * @return number of compactions completed since the engine was opened
+     */
+    public long getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * @return bytes read by completed and running compactions
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return bytes written by completed and running compactions
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return disk space freed by completed compactions
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed;
+    }
+
+    /**
+     * @return bytes waiting to be compacted
+     */
+    public long getDebtBytes() {
+        return debtBytes;
+    }
+
+    /**
+     * @return input size of the running compaction, 0 if none is running
+     */
+    public long getRunningTotalBytes() {
+        return runningTotalBytes;
+    }
+
+    /**
+     * @return fraction of the running compaction done, 1 if none is running
+     */
+    public double getRunningProgress() {
+        return runningTotalBytes == 0 ? 1 : Math.min(1, (double) runningDoneBytes / runningTotalBytes);
+    }
+
+    public String toString() {
+        return String.format("compactions=%d read=%d written=%d reclaimed=%d debt=%d progress=%.2f",
+                compactions, bytesRead, bytesWritten, bytesReclaimed, debtBytes, getRunningProgress());
+    }
+
+    /**
+     * Counters updated by an engine as it compacts
+     */
+    static class Counters {
+        final AtomicLong compactions = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong bytesWritten = new AtomicLong();
+        final AtomicLong bytesReclaimed = new AtomicLong();
+        final AtomicLong runningTotalBytes = new AtomicLong();
+        final AtomicLong runningDoneBytes = new AtomicLong();
+
+        void start(long totalBytes) {
+            runningDoneBytes.set(0);
+            runningTotalBytes.set(totalBytes);
+        }
+
+        void read(long bytes) {
+            bytesRead.addAndGet(bytes);
+            runningDoneBytes.addAndGet(bytes);
+        }
+
+        void written(long bytes) {
+            bytesWritten.addAndGet(bytes);
+        }
+
+        /**
+         * @param inputBytes size of the files compacted
+         * @param outputBytes size of the files written in their place
+         */
+        void finish(long inputBytes, long outputBytes) {
+            compactions.incrementAndGet();
+            bytesReclaimed.addAndGet(Math.max(0, inputBytes - outputBytes));
+            runningTotalBytes.set(0);
+            runningDoneBytes.set(0);
+        }
+
+        void abort() {
+            runningTotalBytes.set(0);
+            runningDoneBytes.set(0);
+        }
+
+        KVCompactionStats snapshot(long debtBytes) {
+            return new KVCompactionStats(compactions.get(), bytesRead.get(), bytesWritten.get(), bytesReclaimed.get(),
+                    debtBytes, runningTotalBytes.get(), runningDoneBytes.get());
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of record values chosen for a storage instance: a codec and the size below
+ * which values are stored as is. A value is also stored as is when compressing does not
+ * make it smaller, so records of one file may mix compressed and plain values.
+ * Compressed values are stored as rawLength(4) followed by the output of the codec.
+ *
+ * Also the registry of codecs, built-in and found by ServiceLoader, by name and by id.
+ */
+final class KVCompression {
+
+    static final KVCompression NONE = new KVCompression(null, Integer.MAX_VALUE);
+
+    private static final Map<String, KVCodec> CODECS_BY_NAME = new HashMap<>();
+    private static final Map<Integer, KVCodec> CODECS_BY_ID = new HashMap<>();
+    static {
+        register(new DeflateCodec("deflate", 1, Deflater.DEFAULT_COMPRESSION));
+        register(new DeflateCodec("deflate-level1", 2, Deflater.BEST_SPEED));
+        register(new Lz4Codec());
+        for (KVCodec codec: ServiceLoader.load(KVCodec.class)) {
+            if (codec.getId() <= 15) {
+                System.out.println("Ignoring codec " + codec.getName() + ": id " + codec.getId() + " is reserved");
+                continue;
+            }
+            register(codec);
+        }
+    }
+
+    final KVCodec codec; // null for no compression
+    final int threshold;
+
+    KVCompression(KVCodec codec, int threshold) {
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param options storage options
+     * @return the compression chosen by the options
+     */
+    static KVCompression of(KVStorageOptions options) {
+        if (options.getCompression() == null) {
+            return NONE;
+        }
+        return new KVCompression(forName(options.getCompression()), options.getCompressionThreshold());
+    }
+
+    /**
+     * @return the codec registered under the given name
+     * @throws IllegalArgumentException if there is none
+     */
+    static KVCodec forName(String name) {
+        KVCodec codec = CODECS_BY_NAME.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec " + name + ", available: " + CODECS_BY_NAME.keySet());
+        }
+        return codec;
+    }
+
+    /**
+     * @return names of every registered codec
+     */
+    static Set<String> codecNames() {
+        return Collections.unmodifiableSet(new TreeSet<>(CODECS_BY_NAME.keySet()));
+    }
+
+    /**
+     * Compress a value if it is large enough and compression pays off.
+     * @param value encoded value
+     * @return the stored bytes; null if the value is to be stored as is
+     */
+    byte[] compress(byte[] value) {
+        if (codec == null || value.length < threshold) {
+            return null;
+        }
+        byte[] compressed = codec.compress(value);
+        if (compressed.length + 4 >= value.length) {
+            return null;
+        }
+        ByteBuffer stored = ByteBuffer.allocate(4 + compressed.length);
+        stored.putInt(value.length);
+        stored.put(compressed);
+        return stored.array();
+    }
+
+    /**
+     * @param codecId id of the codec the value was compressed with
+     * @param src stored bytes
+     * @param offset offset of the stored bytes in src
+     * @param length number of stored bytes
+     * @return the value as encoded before compression
+     * @throws IOException if the codec is not available or the bytes are not valid
+     */
+    static byte[] decompress(int codecId, byte[] src, int offset, int length) throws IOException {
+        KVCodec codec = CODECS_BY_ID.get(codecId);
+        if (codec == null) {
+            throw new IOException("Value compressed with unknown codec " + codecId + ", is its jar on the classpath?");
+        }
+        if (length < 4) {
+            throw new IOException("Corrupted " + codec.getName() + " value");
+        }
+        int rawLength = ByteBuffer.wrap(src, offset, 4).getInt();
+        if (rawLength < 0) {
+            throw new IOException("Corrupted " + codec.getName() + " value");
+        }
+        byte[] value = new byte[rawLength];
+        codec.decompress(src, offset + 4, length - 4, value);
+        return value;
+    }
+
+    private static void register(KVCodec codec) {
+        if (codec.getId() < 1 || codec.getId() > 127) {
+            System.out.println("Ignoring codec " + codec.getName() + ": id " + codec.getId() + " out of range");
+            return;
+        }
+        KVCodec existing = CODECS_BY_ID.get(codec.getId());
+        if (existing != null) {
+            System.out.println("Ignoring codec " + codec.getName() + ": id " + codec.getId() + " is used by " + existing.getName());
+            return;
+        }
+        CODECS_BY_ID.put(codec.getId(), codec);
+        CODECS_BY_NAME.put(codec.getName(), codec);
+    }
+
+    /**
+     * Deflate in the zlib format. Deflaters and Inflaters are costly to create and hold native
+     * memory until they are collected, so they are pooled rather than thread-local, which would
+     * create one per request when requests run on virtual threads.
+     */
+    private static class DeflateCodec implements KVCodec {
+        private final String name;
+        private final int id;
+        private final int level;
+        private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+        DeflateCodec(String name, int id, int level) {
+            this.name = name;
+            this.id = id;
+            this.level = level;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public byte[] compress(byte[] src) {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                deflater = new Deflater(level);
+            }
+            try {
+                deflater.setInput(src);
+                deflater.finish();
+                byte[] out = new byte[src.length + (src.length >> 3) + 64];
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+                return Arrays.copyOf(out, length);
+            } finally {
+                deflater.reset();
+                deflaters.offer(deflater);
+            }
+        }
+
+        public void decompress(byte[] src, int offset, int length, byte[] dst) throws IOException {
+            Inflater inflater = inflaters.poll();
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.setInput(src, offset, length);
+            try {
+                int n = 0;
+                while (n < dst.length) {
+                    int inflated = inflater.inflate(dst, n, dst.length - n);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += inflated;
+                }
+                if (n != dst.length) {
+                    throw new IOException("Corrupted " + name + " value");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted " + name + " value", e);
+            } finally {
+                inflater.reset();
+                inflaters.offer(inflater);
+            }
+        }
+    }
+
+    /**
+     * LZ4 block format: sequences of a token, literals, a 2-byte little-endian offset and the
+     * match length beyond 4, the last sequence holding literals only. Compresses less than
+     * Deflate but several times faster, and decompresses without any native state.
+     */
+    private static class Lz4Codec implements KVCodec {
+        private static final int MIN_MATCH = 4;
+        private static final int LAST_LITERALS = 5; // the last bytes are always literals
+        private static final int MF_LIMIT = 12; // no match starts this close to the end
+        private static final int MAX_OFFSET = 65535;
+        private static final int HASH_LOG = 12;
+        private static final int SKIP_TRIGGER = 6; // misses before the search starts skipping
+
+        public String getName() {
+            return "lz4";
+        }
+
+        public int getId() {
+            return 3;
+        }
+
+        public byte[] compress(byte[] src) {
+            int n = src.length;
+            byte[] out = new byte[n + n / 255 + 16];
+            int op = 0;
+            int anchor = 0;
+            if (n > MF_LIMIT) {
+                int[] table = new int[1 << HASH_LOG]; // position + 1 of the last sequence with a hash, 0 if none
+                int limit = n - MF_LIMIT;
+                int matchLimit = n - LAST_LITERALS;
+                int ip = 0;
+                int misses = 0;
+                while (ip < limit) {
+                    int sequence = readInt(src, ip);
+                    int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                    int ref = table[h] - 1;
+                    table[h] = ip + 1;
+                    if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                        // incompressible input is scanned faster and faster
+                        ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                        continue;
+                    }
+                    misses = 0;
+                    int end = ip + MIN_MATCH;
+                    for (int r = ref + MIN_MATCH; end < matchLimit && src[end] == src[r]; ++r) {
+                        ++end;
+                    }
+                    while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                        --ip;
+                        --ref;
+                    }
+                    int token = op++;
+                    op = writeLiterals(src, anchor, ip - anchor, out, token, op);
+                    out[op++] = (byte) (ip - ref);
+                    out[op++] = (byte) ((ip - ref) >>> 8);
+                    int matchLength = end - ip - MIN_MATCH;
+                    if (matchLength >= 15) {
+                        out[token] |= 0x0F;
+                        op = writeLength(matchLength - 15, out, op);
+                    } else {
+                        out[token] |= (byte) matchLength;
+                    }
+                    ip = end;
+                    anchor = end;
+                }
+            }
+            int token = op++;
+            op = writeLiterals(src, anchor, n - anchor, out, token, op);
+            return Arrays.copyOf(out, op);
+        }
+
+        public void decompress(byte[] src, int offset, int length, byte[] dst) throws IOException {
+            int ip = offset;
+            int end = offset + length;
+            int op = 0;
+            while (true) {
+                if (ip >= end) {
+                    throw corrupted();
+                }
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        if (ip >= end) {
+                            throw corrupted();
+                        }
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > end - ip || literals > dst.length - op) {
+                    throw corrupted();
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == end) {
+                    break;
+                }
+                if (end - ip < 2) {
+                    throw corrupted();
+                }
+                int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                if (distance == 0 || distance > op) {
+                    throw corrupted();
+                }
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        if (ip >= end) {
+                            throw corrupted();
+                        }
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (matchLength > dst.length - op) {
+                    throw corrupted();
+                }
+                if (distance >= matchLength) {
+                    System.arraycopy(dst, op - distance, dst, op, matchLength);
+                    op += matchLength;
+                } else {
+                    // the match overlaps the bytes it produces
+                    for (int i = 0; i < matchLength; ++i, ++op) {
+                        dst[op] = dst[op - distance];
+                    }
+                }
+            }
+            if (op != dst.length) {
+                throw corrupted();
+            }
+        }
+
+        private static int writeLiterals(byte[] src, int from, int count, byte[] out, int token, int op) {
+            if (count >= 15) {
+                out[token] = (byte) 0xF0;
+                op = writeLength(count - 15, out, op);
+            } else {
+                out[token] = (byte) (count << 4);
+            }
+            System.arraycopy(src, from, out, op, count);
+            return op + count;
+        }
+
+        private static int writeLength(int length, byte[] out, int op) {
+            while (length >= 255) {
+                out[op++] = (byte) 255;
+                length -= 255;
+            }
+            out[op++] = (byte) length;
+            return op;
+        }
+
+        private static int readInt(byte[] src, int i) {
+            return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+        }
+
+        private static IOException corrupted() {
+            return new IOException("Corrupted lz4 value");
+        }
+    }
+}
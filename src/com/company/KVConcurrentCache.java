@@ -0,0 +1,168 @@
+package com.company;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe cache made of segments, each a KVCache with its own lock, policy state and share
+ * of the capacity. Keys are spread over the segments by hash, so that operations on different
+ * segments never contend.
+ *
+ * Hits take no lock: the value is read from the KVCache of the segment directly. Under ClockPro
+ * the hit only sets a reference bit; under the other strategies it is queued in a read buffer of
+ * the segment. The buffer is drained into the policy by the thread
+ * which next holds the segment lock, or by a hit which finds it half full and the lock free, as
+ * Caffeine does. A hit queued while the buffer is full is dropped, which only makes the
+ * replacement order slightly less precise.
+ */
+public class KVConcurrentCache {
+
+    private static final int MAX_SEGMENTS = 16;
+    // capacity below which a segment is not split further, so that segments still hold large values
+    private static final int MIN_SEGMENT_CAPACITY = 1 << 16;
+    private static final int READ_BUFFER_SIZE = 64;
+
+    private static class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final KVCache cache; // guarded by lock, but for getKV and inCache
+        final ConcurrentLinkedQueue<String> readBuffer = new ConcurrentLinkedQueue<>();
+        final AtomicInteger buffered = new AtomicInteger();
+
+        Segment(KVCache cache) {
+            this.cache = cache;
+        }
+    }
+
+    private final Segment[] segments;
+    private final boolean recordsHits;
+    private final boolean marksHits;
+
+    public KVConcurrentCache(int cacheCapacity, IKVServer.CacheStrategy replacePolicy) {
+        this(cacheCapacity, replacePolicy, 0);
+    }
+
+    /**
+     * @param cacheCapacity capacity of the whole cache, shared evenly by the segments
+     * @param replacePolicy replacement strategy of every segment
+     * @param decayInterval see KVCache, applied per segment
+     */
+    public KVConcurrentCache(int cacheCapacity, IKVServer.CacheStrategy replacePolicy, int decayInterval) {
+        int count = 1;
+        while (count < MAX_SEGMENTS && cacheCapacity / (count << 1) >= MIN_SEGMENT_CAPACITY) {
+            count <<= 1;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; ++i) {
+            segments[i] = new Segment(new KVCache(cacheCapacity / count, replacePolicy, decayInterval));
+        }
+        // under FIFO a hit changes nothing
+        recordsHits = replacePolicy != IKVServer.CacheStrategy.FIFO && replacePolicy != IKVServer.CacheStrategy.None;
+        marksHits = replacePolicy == IKVServer.CacheStrategy.ClockPro;
+    }
+
+    /**
+     * Get the value associated with the given key and record the hit, without blocking
+     * @param key key of the data
+     * @return value associated with the key; null if it is not cached
+     */
+    public String getKV(String key) {
+        Segment segment = segmentOf(key);
+        String val = segment.cache.getKV(key);
+        if (val != null && recordsHits && !(marksHits && segment.cache.markHit(key))) {
+            recordHit(segment, key);
+        }
+        return val;
+    }
+
+    /**
+     * Put the key-value pair into cache, eviction may take place
+     * @param key key of the data
+     * @param value value of the data
+     */
+    public void putKV(String key, String value) {
+        Segment segment = segmentOf(key);
+        segment.lock.lock();
+        try {
+            drain(segment);
+            segment.cache.putKV(key, value);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Check if the pair with given key is in cache, without blocking
+     * @param key key to check
+     * @return
+     */
+    public boolean inCache(String key) {
+        return segmentOf(key).cache.inCache(key);
+    }
+
+    /**
+     * Remove the record from cache
+     * @param key key to remove
+     */
+    public void deleteFromCache(String key) {
+        Segment segment = segmentOf(key);
+        segment.lock.lock();
+        try {
+            drain(segment);
+            segment.cache.deleteFromCache(key);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove everything in the cache, one segment at a time
+     */
+    public void clearCache() {
+        for (Segment segment: segments) {
+            segment.lock.lock();
+            try {
+                drain(segment);
+                segment.cache.clearCache();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    private Segment segmentOf(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    private void recordHit(Segment segment, String key) {
+        int buffered = segment.buffered.incrementAndGet();
+        if (buffered <= READ_BUFFER_SIZE) {
+            segment.readBuffer.offer(key);
+        } else {
+            segment.buffered.decrementAndGet();
+        }
+        if (buffered >= READ_BUFFER_SIZE / 2 && segment.lock.tryLock()) {
+            try {
+                drain(segment);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replay the buffered hits of a segment on its policy. The caller holds the segment lock.
+     */
+    private void drain(Segment segment) {
+        String key;
+        while ((key = segment.readBuffer.poll()) != null) {
+            segment.buffered.decrementAndGet();
+            // the key may have been evicted or deleted since the hit
+            if (segment.cache.inCache(key)) {
+                segment.cache.updateOrderList(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.company;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Deadlines of the keys put with a time to live.
+ *
+ * The deadlines are kept in memory, so that expired keys can be hidden by every read, and in a
+ * timing wheel which hands them to the reaper as they come. They are made durable in a journal
+ * of KVRecords holding the deadline as value, a tombstone dropping it; the journal is rewritten
+ * from memory once most of it is stale.
+ *
+ * Callers hold the stripe lock of a key while they change its deadline, so deadlines of the same
+ * key are never changed concurrently. This class is thread-safe.
+ */
+class KVExpiry implements Closeable {
+
+    static final String JOURNAL_FILE = "expiry.log";
+    static final long TICK_MILLIS = 1000;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MIN_REWRITE_RECORDS = 1024;
+
+    private final ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final File file;
+    private KVTimingWheel wheel; // guarded by lock
+    private KVWriteAheadLog journal; // guarded by lock, null until the first append after clearAll
+    private long journalRecords; // guarded by lock
+
+    /**
+     * Open the journal in the given directory and load the deadlines it holds.
+     * @param dbPath database directory
+     * @throws IOException
+     */
+    KVExpiry(String dbPath) throws IOException {
+        this.file = new File(dbPath + JOURNAL_FILE);
+        File temp = new File(dbPath + JOURNAL_FILE + TEMP_SUFFIX);
+        if (temp.exists() && !temp.delete()) {
+            // left over by an interrupted rewrite, the journal itself is intact
+            System.out.println("Failed to delete " + temp);
+        }
+        wheel = new KVTimingWheel(TICK_MILLIS, System.currentTimeMillis());
+        journal = new KVWriteAheadLog(file);
+        for (KVRecord record: journal.replay()) {
+            ++journalRecords;
+            if (record.isTombstone()) {
+                deadlines.remove(record.key);
+            } else {
+                try {
+                    deadlines.put(record.key, Long.parseLong(record.value));
+                } catch (NumberFormatException e) {
+                    // TODO: logging
+                    System.out.println("Ignoring deadline " + record.value + " of " + record.key);
+                }
+            }
+        }
+        for (Map.Entry<String, Long> entry: deadlines.entrySet()) {
+            wheel.add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param key given key
+     * @return true if the key has a deadline and it has passed
+     */
+    boolean isExpired(String key) {
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis();
+    }
+
+    /**
+     * Give a key a time to live, or take it away.
+     * @param key given key
+     * @param ttlMillis time to live from now; 0 for a key that never expires
+     * @throws IOException
+     */
+    void set(String key, long ttlMillis) throws IOException {
+        if (ttlMillis == 0) {
+            clear(Collections.singleton(key));
+            return;
+        }
+        long deadline = System.currentTimeMillis() + ttlMillis;
+        lock.lock();
+        try {
+            append(Collections.singletonList(KVRecord.encode(key, Long.toString(deadline))));
+            deadlines.put(key, deadline);
+            wheel.add(key, deadline);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the deadlines of the given keys. Keys without one cost nothing.
+     * @param keys given keys
+     * @throws IOException
+     */
+    void clear(Collection<String> keys) throws IOException {
+        List<String> cleared = new ArrayList<>();
+        for (String key: keys) {
+            if (deadlines.containsKey(key)) {
+                cleared.add(key);
+            }
+        }
+        if (cleared.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            List<ByteBuffer> records = new ArrayList<>(cleared.size());
+            for (String key: cleared) {
+                records.add(KVRecord.encode(key, null));
+            }
+            append(records);
+            for (String key: cleared) {
+                deadlines.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hand keys the reaper failed to delete back to the timing wheel; they come up again at the next turn.
+     * @param keys given keys
+     */
+    void retry(Collection<String> keys) {
+        lock.lock();
+        try {
+            for (String key: keys) {
+                Long deadline = deadlines.get(key);
+                if (deadline != null) {
+                    wheel.add(key, deadline);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop every deadline and the journal, after the database directory was emptied.
+     * The journal is created again by the next deadline.
+     * @throws IOException
+     */
+    void clearAll() throws IOException {
+        lock.lock();
+        try {
+            deadlines.clear();
+            wheel = new KVTimingWheel(TICK_MILLIS, System.currentTimeMillis());
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Failed to delete " + file);
+            }
+            journalRecords = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Turn the timing wheel up to now.
+     * @return the keys which have expired since the last call; a key may come up more than once
+     */
+    List<String> due() {
+        List<String> candidates;
+        lock.lock();
+        try {
+            candidates = wheel.advance(System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+        List<String> expired = new ArrayList<>();
+        for (String key: candidates) {
+            // a key whose deadline was moved or dropped comes up at its old deadline too
+            if (isExpired(key)) {
+                expired.add(key);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return number of keys with a deadline
+     */
+    int size() {
+        return deadlines.size();
+    }
+
+    /**
+     * Block until the deadlines set so far are on stable storage.
+     * @throws IOException
+     */
+    void sync() throws IOException {
+        KVWriteAheadLog journal;
+        lock.lock();
+        try {
+            journal = this.journal;
+        } finally {
+            lock.unlock();
+        }
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (journal != null) {
+                journal.sync();
+                journal.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Append records to the journal, rewriting it first once most of its records are stale.
+     * The caller holds lock.
+     * @param records encoded records
+     * @throws IOException
+     */
+    private void append(List<ByteBuffer> records) throws IOException {
+        if (journal == null) {
+            File dir = file.getParentFile();
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            journal = new KVWriteAheadLog(file);
+        }
+        if (journalRecords > MIN_REWRITE_RECORDS && journalRecords > 2L * deadlines.size()) {
+            try {
+                rewrite();
+            } catch (IOException e) {
+                // TODO: logging
+                // the old journal is still valid, keep appending to it
+                System.out.println("Failed to rewrite " + file + ": " + e.getLocalizedMessage());
+            }
+        }
+        if (records.size() == 1) {
+            journal.append(records.get(0));
+        } else {
+            journal.appendBatch(records);
+        }
+        journalRecords += records.size();
+    }
+
+    /**
+     * Replace the journal by the current deadlines. The caller holds lock.
+     * @throws IOException
+     */
+    private void rewrite() throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        KVWriteAheadLog rewritten = new KVWriteAheadLog(temp);
+        try {
+            List<ByteBuffer> records = new ArrayList<>(deadlines.size());
+            for (Map.Entry<String, Long> entry: deadlines.entrySet()) {
+                records.add(KVRecord.encode(entry.getKey(), Long.toString(entry.getValue())));
+            }
+            for (ByteBuffer record: records) {
+                rewritten.append(record);
+            }
+            rewritten.sync();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            rewritten.close();
+            if (temp.exists() && !temp.delete()) {
+                System.out.println("Failed to delete " + temp);
+            }
+            throw e;
+        }
+        journal.close();
+        journal = rewritten;
+        journalRecords = deadlines.size();
+    }
+}
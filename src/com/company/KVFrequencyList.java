@@ -0,0 +1,191 @@
+package com.company;
+
+/**
+ * LFU strategy of KVCache: the cache nodes grouped by access frequency.
+ *
+ * Each frequency in use has a bucket holding its nodes from least to most recently used, and
+ * the buckets are linked in increasing frequency, so the head bucket is the minimum frequency.
+ * A node points to its bucket and an access moves it to the bucket of the next frequency, which
+ * is either the next bucket or a new one; adding, touching, removing and evicting are all O(1).
+ *
+ * Optionally every frequency is halved once a number of accesses have passed, so that keys which
+ * were hot long ago do not stay forever.
+ * This class is not thread-safe.
+ */
+class KVFrequencyList implements KVCachePolicy {
+
+    static class Bucket {
+        int freq;
+        final KVCacheList nodes = new KVCacheList();
+        Bucket prev;
+        Bucket next;
+
+        Bucket(int freq) {
+            this.freq = freq;
+        }
+    }
+
+    private Bucket head; // minimum frequency
+    private int size;
+    private final int decayInterval; // accesses between two halvings of the frequencies, 0 for none
+    private int accessesSinceDecay;
+
+    KVFrequencyList() {
+        this(0);
+    }
+
+    /**
+     * @param decayInterval number of accesses after which every frequency is halved; 0 to never decay
+     */
+    KVFrequencyList(int decayInterval) {
+        this.decayInterval = decayInterval;
+    }
+
+    public void miss(String key) {
+    }
+
+    /**
+     * @param node node in no list, added with frequency 1
+     */
+    public void insert(CacheNode node) {
+        if (head == null || head.freq != 1) {
+            Bucket bucket = new Bucket(1);
+            bucket.next = head;
+            if (head != null) {
+                head.prev = bucket;
+            }
+            head = bucket;
+        }
+        node.freq = 1;
+        node.bucket = head;
+        head.nodes.addLast(node);
+        ++size;
+        countAccess();
+    }
+
+    /**
+     * Raise the frequency of the given node by one
+     * @param node node of this list
+     */
+    public void touch(CacheNode node) {
+        Bucket bucket = node.bucket;
+        Bucket next = bucket.next;
+        if (next == null || next.freq != bucket.freq + 1) {
+            next = new Bucket(bucket.freq + 1);
+            link(bucket, next);
+        }
+        bucket.nodes.remove(node);
+        if (bucket.nodes.size() == 0) {
+            unlink(bucket);
+        }
+        node.freq = next.freq;
+        node.bucket = next;
+        next.nodes.addLast(node);
+        countAccess();
+    }
+
+    public boolean mark(CacheNode node) {
+        return false;
+    }
+
+    /**
+     * Remove the least recently used node of the minimum frequency
+     * @return the removed node; null if the list is empty
+     */
+    public CacheNode evict() {
+        if (head == null) {
+            return null;
+        }
+        CacheNode node = head.nodes.peekFirst();
+        remove(node);
+        return node;
+    }
+
+    /**
+     * @param node node of this list
+     */
+    public void remove(CacheNode node) {
+        Bucket bucket = node.bucket;
+        bucket.nodes.remove(node);
+        if (bucket.nodes.size() == 0) {
+            unlink(bucket);
+        }
+        node.bucket = null;
+        --size;
+    }
+
+    /**
+     * Halve every frequency, rounding up so that no node drops below 1. Buckets which end up
+     * with the same frequency are merged, the nodes of the lower one first.
+     * O(n), see countAccess.
+     */
+    private void decay() {
+        Bucket bucket = head;
+        while (bucket != null) {
+            Bucket next = bucket.next;
+            bucket.freq = (bucket.freq + 1) >> 1;
+            Bucket prev = bucket.prev;
+            if (prev != null && prev.freq == bucket.freq) {
+                CacheNode node;
+                while ((node = bucket.nodes.pollFirst()) != null) {
+                    node.bucket = prev;
+                    prev.nodes.addLast(node);
+                }
+                unlink(bucket);
+            }
+            bucket = next;
+        }
+        for (bucket = head; bucket != null; bucket = bucket.next) {
+            for (CacheNode node = bucket.nodes.peekFirst(); node != null; node = node.next) {
+                node.freq = bucket.freq;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (Bucket bucket = head; bucket != null; bucket = bucket.next) {
+            bucket.nodes.clear();
+        }
+        head = null;
+        size = 0;
+        accessesSinceDecay = 0;
+    }
+
+    /**
+     * Count an access and halve the frequencies once decayInterval accesses have passed.
+     * The halving is O(n), so an interval of at least the number of entries keeps accesses
+     * O(1) amortized.
+     */
+    private void countAccess() {
+        if (decayInterval > 0 && ++accessesSinceDecay >= decayInterval) {
+            decay();
+            accessesSinceDecay = 0;
+        }
+    }
+
+    private void link(Bucket prev, Bucket bucket) {
+        bucket.prev = prev;
+        bucket.next = prev.next;
+        if (prev.next != null) {
+            prev.next.prev = bucket;
+        }
+        prev.next = bucket;
+    }
+
+    private void unlink(Bucket bucket) {
+        if (bucket.prev == null) {
+            head = bucket.next;
+        } else {
+            bucket.prev.next = bucket.next;
+        }
+        if (bucket.next != null) {
+            bucket.next.prev = bucket.prev;
+        }
+        bucket.prev = null;
+        bucket.next = null;
+    }
+}
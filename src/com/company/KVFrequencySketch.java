@@ -0,0 +1,116 @@
+package com.company;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch estimating how often keys were accessed, for the TinyLFU strategy of KVCache.
+ *
+ * Each key has four 4-bit counters, one per hash, spread over a table of longs; its frequency is
+ * the smallest of them, which overestimates only when all four collide. Once the number of
+ * increments reaches ten times the table length, every counter is halved, so that the sketch
+ * follows the recent history and saturating at 15 does not matter.
+ * This class is not thread-safe.
+ */
+class KVFrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_LENGTH = 1 << 26;
+
+    private long[] table = new long[0];
+    private int sampleSize;
+    private int increments;
+
+    /**
+     * Grow the table for the given number of keys. Counts are lost when it grows, which happens
+     * a logarithmic number of times.
+     * @param keys number of keys the cache holds
+     */
+    void ensureCapacity(int keys) {
+        int length = Integer.highestOneBit(Math.max(1, Math.min(keys, MAX_LENGTH) - 1)) << 1;
+        if (length <= table.length) {
+            return;
+        }
+        table = new long[length];
+        sampleSize = 10 * length;
+        increments = 0;
+    }
+
+    /**
+     * @param key given key
+     * @return estimated number of recent accesses to the key, at most 15
+     */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; ++i) {
+            int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Count an access to the given key
+     * @param key given key
+     */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; ++i) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++increments == sampleSize) {
+            reset();
+        }
+    }
+
+    void clear() {
+        Arrays.fill(table, 0L);
+        increments = 0;
+    }
+
+    /**
+     * @param i index of a long in the table
+     * @param j index of a counter in that long
+     * @return false if the counter is saturated
+     */
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        if ((table[i] & mask) != mask) {
+            table[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halve every counter. The odd counters lose half a count each, which is taken off the
+     * number of increments too.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; ++i) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        increments = (increments - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & (table.length - 1);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,119 @@
+package com.company;
+
+import javax.xml.bind.DatatypeConverter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Helpers for placing keys on the MD5 hash ring.
+ */
+final class KVHashRange {
+
+    // composite keys are "hash" + KEY_SEPARATOR + "key" so that they sort by hash first
+    static final char KEY_SEPARATOR = '\0';
+
+    // every operation hashes its key, and getInstance is much slower than a digest.
+    // Digests are pooled rather than thread-local, since a virtual thread per request would never reuse one
+    private static final ConcurrentLinkedQueue<MessageDigest> MD5 = new ConcurrentLinkedQueue<>();
+
+    private KVHashRange() {
+    }
+
+    /**
+     * Compute the hash of the given key, the same way ECSNode hashes servers.
+     * Assumptions: key != null
+     * @param key given key
+     * @return upper case hex MD5 of the key
+     */
+    static String hashOf(String key) {
+        MessageDigest messageDigest = MD5.poll();
+        if (messageDigest == null) {
+            try {
+                messageDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                System.out.println(e.getLocalizedMessage());
+                // if MD5 fails
+                // let the hashcode of the key be the hash
+                return String.valueOf(key.hashCode());
+            }
+        }
+        try {
+            byte[] bytes = messageDigest.digest(key.getBytes());
+            return DatatypeConverter.printHexBinary(bytes);
+        } finally {
+            MD5.offer(messageDigest);
+        }
+    }
+
+    /**
+     * Check if the given hash falls in (lowerExclusive, upperInclusive].
+     * If lowerExclusive > upperInclusive the range wraps around the ring.
+     * @param lowerExclusive
+     * @param upperInclusive
+     * @param hash hash to check
+     * @return
+     */
+    static boolean contains(String lowerExclusive, String upperInclusive, String hash) {
+        if (lowerExclusive.compareTo(upperInclusive) > 0) {
+            // corner case: wrap around
+            return lowerExclusive.compareTo(hash) < 0 || hash.compareTo(upperInclusive) <= 0;
+        }
+        return lowerExclusive.compareTo(hash) < 0 && hash.compareTo(upperInclusive) <= 0;
+    }
+
+    /**
+     * Compute the composite key used by hash-ordered structures.
+     * @param key given key
+     * @return hash of the key followed by the key itself
+     */
+    static String compositeKey(String key) {
+        return hashOf(key) + KEY_SEPARATOR + key;
+    }
+
+    /**
+     * @param compositeKey key built by compositeKey(String)
+     * @return the original key
+     */
+    static String keyOf(String compositeKey) {
+        return compositeKey.substring(compositeKey.indexOf(KEY_SEPARATOR) + 1);
+    }
+
+    /**
+     * @param lowerExclusive lower end of a hash range
+     * @return the smallest composite key whose hash is greater than lowerExclusive
+     */
+    static String lowerBound(String lowerExclusive) {
+        return lowerExclusive + (char) (KEY_SEPARATOR + 1);
+    }
+
+    /**
+     * @param upperInclusive upper end of a hash range
+     * @return the smallest composite key whose hash is greater than upperInclusive
+     */
+    static String upperBound(String upperInclusive) {
+        return upperInclusive + (char) (KEY_SEPARATOR + 1);
+    }
+
+    /**
+     * Views of a map keyed by composite keys that together cover (lowerExclusive, upperInclusive].
+     * A wrap-around range yields two views, the tail of the ring first.
+     * @param map map keyed by composite keys
+     * @param lowerExclusive
+     * @param upperInclusive
+     * @return one or two sub maps
+     */
+    static <V> List<NavigableMap<String, V>> subMaps(NavigableMap<String, V> map, String lowerExclusive, String upperInclusive) {
+        List<NavigableMap<String, V>> views = new ArrayList<>(2);
+        if (lowerExclusive.compareTo(upperInclusive) > 0) {
+            views.add(map.tailMap(lowerBound(lowerExclusive), true));
+            views.add(map.headMap(upperBound(upperInclusive), false));
+        } else {
+            views.add(map.subMap(lowerBound(lowerExclusive), true, upperBound(upperInclusive), false));
+        }
+        return views;
+    }
+}
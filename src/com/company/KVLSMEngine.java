@@ -0,0 +1,1091 @@
+package com.company;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured merge tree storage engine.
+ * Writes go to a log and a sorted concurrent memtable. Full memtables are frozen and flushed
+ * to immutable KVSSTables by a background thread, and tables are merged level by level
+ * (leveled compaction) so that every level past 0 holds non-overlapping tables.
+ * Deletes are tombstones, which are dropped once they reach the bottom of the tree.
+ *
+ * Everything is keyed by KVHashRange.compositeKey so that range operations over the hash ring
+ * are sequential scans.
+ */
+class KVLSMEngine implements IKVStorageEngine {
+
+    private static final String TABLE_PREFIX = "sst-";
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String LOG_PREFIX = "memtable-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String MANIFEST = "MANIFEST";
+
+    private static final long MEMTABLE_SIZE = 4L << 20;
+    private static final int MAX_IMMUTABLE_MEMTABLES = 2;
+    private static final int L0_COMPACTION_TRIGGER = 4;
+    private static final long TARGET_TABLE_SIZE = 2L << 20;
+    private static final long L1_MAX_BYTES = 10L << 20;
+    private static final int LEVEL_SIZE_MULTIPLIER = 10;
+    private static final int MAX_LEVELS = 7;
+
+    // memtable marker of a deleted key, compared by identity
+    private static final String TOMBSTONE = new String("tombstone");
+
+    private static class Memtable {
+        final ConcurrentSkipListMap<String, String> map = new ConcurrentSkipListMap<>();
+        final AtomicLong size = new AtomicLong();
+        final List<File> logs = new ArrayList<>(); // deleted once the memtable is flushed
+    }
+
+    /**
+     * Snapshot of the tree. Readers pin the current version so that the tables it
+     * references stay open until they are done with them.
+     */
+    private static class Version {
+        final Memtable memtable;
+        final List<Memtable> immutables; // newest first
+        final List<List<KVSSTable>> levels; // level 0 newest first, other levels sorted by min key
+        int refs = 1; // guarded by versionLock; the initial reference is held while the version is current
+
+        Version(Memtable memtable, List<Memtable> immutables, List<List<KVSSTable>> levels) {
+            this.memtable = memtable;
+            this.immutables = immutables;
+            this.levels = levels;
+            for (List<KVSSTable> level: levels) {
+                for (KVSSTable table: level) {
+                    table.retain();
+                }
+            }
+        }
+
+        void releaseTables() {
+            for (List<KVSSTable> level: levels) {
+                for (KVSSTable table: level) {
+                    table.release();
+                }
+            }
+        }
+    }
+
+    private final String dbPath;
+    private final boolean memoryMapped;
+    private final KVCompression compression;
+    private final KVRateLimiter rateLimiter;
+    private final KVCompactionStats.Counters compactionCounters = new KVCompactionStats.Counters();
+    private final ReentrantLock versionLock = new ReentrantLock();
+    private final Condition flushed = versionLock.newCondition();
+    private final AtomicLong nextFileId = new AtomicLong();
+    private final String[] compactPointers = new String[MAX_LEVELS];
+    private volatile Version current;
+    private int pendingFlushes = 0; // guarded by versionLock
+    private ExecutorService background;
+
+    // shared by writers while they add to the active memtable and its log,
+    // owned while the log is opened or the memtable is frozen
+    private final ReentrantReadWriteLock memtableLock = new ReentrantReadWriteLock();
+    // log of the active memtable
+    private volatile KVWriteAheadLog log;
+
+    /**
+     * Open the tree stored in the given directory, replaying the logs of unflushed memtables.
+     * @param dbPath path of an existing database directory, ending with '/'
+     * @param options storage options
+     * @throws IOException
+     */
+    public KVLSMEngine(String dbPath, KVStorageOptions options) throws IOException {
+        this.dbPath = dbPath;
+        this.memoryMapped = options.getReadMode() == KVStorageOptions.ReadMode.MemoryMapped;
+        this.compression = KVCompression.of(options);
+        this.rateLimiter = new KVRateLimiter(options.getCompactionBytesPerSecond());
+        List<List<KVSSTable>> levels = newLevels();
+        Set<Long> live = readManifest(levels);
+
+        long maxId = -1;
+        List<Long> logIds = new ArrayList<>();
+        File[] files = new File(dbPath).listFiles();
+        if (files != null) {
+            for (File file: files) {
+                long id = fileId(file.getName(), TABLE_PREFIX, TABLE_SUFFIX);
+                if (id >= 0) {
+                    maxId = Math.max(maxId, id);
+                    if (!live.contains(id) && !file.delete()) {
+                        // left over from an interrupted flush or compaction
+                        System.out.println("Failed to delete " + file);
+                    }
+                    continue;
+                }
+                id = fileId(file.getName(), LOG_PREFIX, LOG_SUFFIX);
+                if (id >= 0) {
+                    maxId = Math.max(maxId, id);
+                    logIds.add(id);
+                }
+            }
+        }
+        nextFileId.set(maxId + 1);
+
+        Collections.sort(logIds);
+        Memtable memtable = new Memtable();
+        for (long id: logIds) {
+            replay(logFile(id), memtable);
+        }
+        current = new Version(memtable, new ArrayList<Memtable>(), levels);
+        background = newBackground();
+        if (memtable.size.get() >= MEMTABLE_SIZE) {
+            rotate(memtable);
+        }
+    }
+
+    public String get(String key) throws IOException {
+        String value = lookup(KVHashRange.compositeKey(key));
+        return value == TOMBSTONE ? null : value;
+    }
+
+    /**
+     * Tables whose Bloom filter rules the key out are not read.
+     */
+    public boolean contains(String key) throws IOException {
+        return get(key) != null;
+    }
+
+    /**
+     * The keys are looked up in one version, in key order so that every table is walked forward.
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws IOException {
+        TreeMap<String, String> compositeKeys = new TreeMap<>();
+        for (String key: keys) {
+            compositeKeys.put(KVHashRange.compositeKey(key), key);
+        }
+        Map<String, String> values = new HashMap<>();
+        Version version = acquire();
+        try {
+            for (Map.Entry<String, String> entry: compositeKeys.entrySet()) {
+                String value = lookup(version, entry.getKey());
+                if (value != null && value != TOMBSTONE) {
+                    values.put(entry.getValue(), value);
+                }
+            }
+        } finally {
+            release(version);
+        }
+        return values;
+    }
+
+    public KVStorageResult.ResultType put(String key, String value) throws IOException {
+        String compositeKey = KVHashRange.compositeKey(key);
+        String old = lookup(compositeKey);
+        boolean exists = old != null && old != TOMBSTONE;
+        try {
+            write(compositeKey, value);
+        } catch (IOException ioe) {
+            System.out.println(ioe.getLocalizedMessage());
+            return exists ? KVStorageResult.ResultType.PUT_UPDATE_ERROR : KVStorageResult.ResultType.PUT_ERROR;
+        }
+        return exists ? KVStorageResult.ResultType.PUT_UPDATE_SUCCESS : KVStorageResult.ResultType.PUT_SUCCESS;
+    }
+
+    public boolean delete(String key) throws IOException {
+        String compositeKey = KVHashRange.compositeKey(key);
+        String old = lookup(compositeKey);
+        if (old == null || old == TOMBSTONE) {
+            return false;
+        }
+        write(compositeKey, null);
+        return true;
+    }
+
+    public boolean writeBatch(Map<String, String> batch) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        List<ByteBuffer> records = new ArrayList<>();
+        for (Map.Entry<String, String> entry: batch.entrySet()) {
+            String compositeKey = KVHashRange.compositeKey(entry.getKey());
+            keys.add(compositeKey);
+            values.add(entry.getValue() == null ? TOMBSTONE : entry.getValue());
+            records.add(KVRecord.encode(compositeKey, entry.getValue(), compression));
+        }
+        try {
+            append(keys, values, records, true);
+        } catch (IOException ioe) {
+            System.out.println(ioe.getLocalizedMessage());
+            return false;
+        }
+        return true;
+    }
+
+    public HashMap<String, String> getInRange(String lowerExclusive, String upperInclusive) throws IOException {
+        HashMap<String, String> kvPairs = new HashMap<>();
+        Version version = acquire();
+        try {
+            for (Iterator<Map.Entry<String, String>> it: rangeIterators(version, version.memtable.map, lowerExclusive, upperInclusive)) {
+                while (it.hasNext()) {
+                    Map.Entry<String, String> entry = it.next();
+                    if (entry.getValue() != null) {
+                        kvPairs.put(KVHashRange.keyOf(entry.getKey()), entry.getValue());
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            release(version);
+        }
+        return kvPairs;
+    }
+
+    /**
+     * Pins the current version, whose tables and frozen memtables never change, and copies
+     * the range of the active memtable, which is bounded by MEMTABLE_SIZE.
+     */
+    public IKVCursor openCursor(String lowerExclusive, String upperInclusive) {
+        Version version = acquire();
+        TreeMap<String, String> memtable = new TreeMap<>();
+        for (NavigableMap<String, String> view: KVHashRange.subMaps(version.memtable.map, lowerExclusive, upperInclusive)) {
+            memtable.putAll(view);
+        }
+        List<Iterator<Map.Entry<String, String>>> iterators = new ArrayList<>();
+        for (Iterator<Map.Entry<String, String>> it: rangeIterators(version, memtable, lowerExclusive, upperInclusive)) {
+            iterators.add(skipTombstones(it));
+        }
+        return new TreeCursor(version, iterators);
+    }
+
+    private class TreeCursor implements IKVCursor {
+        private final Version version;
+        private final Iterator<Iterator<Map.Entry<String, String>>> pieces;
+        private Iterator<Map.Entry<String, String>> piece;
+        private Map.Entry<String, String> entry;
+        private boolean closed = false;
+
+        TreeCursor(Version version, List<Iterator<Map.Entry<String, String>>> pieces) {
+            this.version = version;
+            this.pieces = pieces.iterator();
+        }
+
+        public boolean next() throws IOException {
+            entry = null;
+            if (closed) {
+                return false;
+            }
+            try {
+                while (piece == null || !piece.hasNext()) {
+                    if (!pieces.hasNext()) {
+                        return false;
+                    }
+                    piece = pieces.next();
+                }
+                entry = piece.next();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return true;
+        }
+
+        public String getKey() {
+            return entry == null ? null : KVHashRange.keyOf(entry.getKey());
+        }
+
+        public String getValue() {
+            return entry == null ? null : entry.getValue();
+        }
+
+        public void close() {
+            if (!closed) {
+                closed = true;
+                entry = null;
+                release(version);
+            }
+        }
+    }
+
+    public void deleteInRange(String lowerExclusive, String upperInclusive) {
+        List<String> keys = new ArrayList<>();
+        Version version = acquire();
+        try {
+            for (Iterator<Map.Entry<String, String>> it: rangeIterators(version, version.memtable.map, lowerExclusive, upperInclusive)) {
+                while (it.hasNext()) {
+                    Map.Entry<String, String> entry = it.next();
+                    if (entry.getValue() != null) {
+                        keys.add(entry.getKey());
+                    }
+                }
+            }
+            for (String compositeKey: keys) {
+                write(compositeKey, null);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // TODO: logging
+            System.out.println("Failed to delete range: " + e.getLocalizedMessage());
+        } finally {
+            release(version);
+        }
+    }
+
+    public void clear() {
+        stopBackground();
+        versionLock.lock();
+        try {
+            closeLog();
+            for (List<KVSSTable> level: current.levels) {
+                for (KVSSTable table: level) {
+                    table.markObsolete();
+                }
+            }
+            install(new Version(new Memtable(), new ArrayList<Memtable>(), newLevels()));
+        } finally {
+            versionLock.unlock();
+        }
+        File[] files = new File(dbPath).listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (file.exists() && !file.delete()) {
+                    // TODO: logging
+                    System.out.println("Failed to delete " + file);
+                }
+            }
+        }
+        background = newBackground();
+    }
+
+    /**
+     * Runs on the background thread, after the flushes and compactions already queued.
+     */
+    public void compact() throws IOException {
+        Future<Void> done = background.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                compactLevels();
+                return null;
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compaction");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Debt is the size of level 0 once it is due for compaction, plus the bytes by which
+     * every other level exceeds its limit.
+     */
+    public KVCompactionStats getCompactionStats() {
+        long debt = 0;
+        Version version = acquire();
+        try {
+            if (version.levels.get(0).size() >= L0_COMPACTION_TRIGGER) {
+                debt += levelBytes(version.levels.get(0));
+            }
+            for (int i = 1; i < MAX_LEVELS - 1; ++i) {
+                debt += Math.max(0, levelBytes(version.levels.get(i)) - maxBytes(i));
+            }
+        } finally {
+            release(version);
+        }
+        return compactionCounters.snapshot(debt);
+    }
+
+    public void sync() throws IOException {
+        KVWriteAheadLog log = this.log;
+        if (log != null) {
+            log.sync();
+        }
+    }
+
+    public void close() throws IOException {
+        stopBackground();
+        versionLock.lock();
+        try {
+            closeLog();
+            release(current);
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    /**
+     * Find the newest entry of a key.
+     * @param compositeKey composite key
+     * @return the value, TOMBSTONE if the key was deleted, or null if it was never written
+     * @throws IOException
+     */
+    private String lookup(String compositeKey) throws IOException {
+        Version version = acquire();
+        try {
+            return lookup(version, compositeKey);
+        } finally {
+            release(version);
+        }
+    }
+
+    /**
+     * Find the newest entry of a key in a version the caller holds.
+     * @param version acquired version
+     * @param compositeKey composite key
+     * @return the value, TOMBSTONE if the key was deleted, or null if it was never written
+     * @throws IOException
+     */
+    private String lookup(Version version, String compositeKey) throws IOException {
+        String value = version.memtable.map.get(compositeKey);
+        if (value != null) {
+            return value;
+        }
+        for (Memtable memtable: version.immutables) {
+            value = memtable.map.get(compositeKey);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (KVSSTable table: version.levels.get(0)) {
+            Map.Entry<String, String> entry = table.get(compositeKey);
+            if (entry != null) {
+                return entry.getValue() == null ? TOMBSTONE : entry.getValue();
+            }
+        }
+        for (int i = 1; i < MAX_LEVELS; ++i) {
+            KVSSTable table = findTable(version.levels.get(i), compositeKey);
+            if (table != null) {
+                Map.Entry<String, String> entry = table.get(compositeKey);
+                if (entry != null) {
+                    return entry.getValue() == null ? TOMBSTONE : entry.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Append an entry to the log and the memtable, freezing the memtable when it is full.
+     * @param compositeKey composite key
+     * @param value given value; null for a tombstone
+     * @throws IOException
+     */
+    private void write(String compositeKey, String value) throws IOException {
+        append(Collections.singletonList(compositeKey), Collections.singletonList(value == null ? TOMBSTONE : value),
+                Collections.singletonList(KVRecord.encode(compositeKey, value, compression)), false);
+    }
+
+    /**
+     * Append records to the log and their entries to the active memtable, freezing the memtable
+     * when it is full. Writers of different keys run this concurrently.
+     * @param keys composite keys
+     * @param values memtable values, TOMBSTONE for deletes
+     * @param records encoded records
+     * @param batch whether the records are appended as one batch
+     * @throws IOException
+     */
+    private void append(List<String> keys, List<String> values, List<ByteBuffer> records, boolean batch)
+            throws IOException {
+        Memtable memtable;
+        boolean full;
+        memtableLock.readLock().lock();
+        try {
+            if (log == null) {
+                memtableLock.readLock().unlock();
+                memtableLock.writeLock().lock();
+                try {
+                    if (log == null) {
+                        openLog(current.memtable);
+                    }
+                } finally {
+                    // downgrade, nobody can close the log while the read lock is held
+                    memtableLock.readLock().lock();
+                    memtableLock.writeLock().unlock();
+                }
+            }
+            memtable = current.memtable;
+            if (batch) {
+                log.appendBatch(records);
+            } else {
+                log.append(records.get(0));
+            }
+            long length = 0;
+            for (int i = 0; i < keys.size(); ++i) {
+                memtable.map.put(keys.get(i), values.get(i));
+                length += records.get(i).limit();
+            }
+            full = memtable.size.addAndGet(length) >= MEMTABLE_SIZE;
+        } finally {
+            memtableLock.readLock().unlock();
+        }
+        if (full) {
+            rotate(memtable);
+        }
+    }
+
+    /**
+     * Freeze the active memtable and schedule its flush.
+     * Stalls the writer while too many frozen memtables are waiting to be flushed.
+     * @param full memtable found full; nothing is done if another writer froze it already
+     */
+    private void rotate(Memtable full) {
+        memtableLock.writeLock().lock();
+        try {
+            if (current.memtable != full) {
+                return;
+            }
+            versionLock.lock();
+            try {
+                while (current.immutables.size() >= MAX_IMMUTABLE_MEMTABLES && pendingFlushes > 0) {
+                    flushed.awaitUninterruptibly();
+                }
+                closeLog();
+                List<Memtable> immutables = new ArrayList<>();
+                immutables.add(current.memtable);
+                immutables.addAll(current.immutables);
+                install(new Version(new Memtable(), immutables, current.levels));
+                ++pendingFlushes;
+            } finally {
+                versionLock.unlock();
+            }
+        } finally {
+            memtableLock.writeLock().unlock();
+        }
+        background.submit(new Runnable() {
+            public void run() {
+                flushOldest();
+            }
+        });
+    }
+
+    /**
+     * Background task: write the oldest frozen memtable to a level 0 table, then compact.
+     */
+    private void flushOldest() {
+        Version version = acquire();
+        try {
+            if (version.immutables.isEmpty()) {
+                return;
+            }
+            Memtable memtable = version.immutables.get(version.immutables.size() - 1);
+            long id = nextFileId.getAndIncrement();
+            KVSSTable table = KVSSTable.write(tableFile(id), id, entries(memtable.map, null, null), Long.MAX_VALUE,
+                    compression, memoryMapped);
+
+            // only this thread changes levels, so they can be read without the lock
+            List<List<KVSSTable>> levels = copyLevels(current.levels);
+            if (table != null) {
+                levels.get(0).add(0, table);
+            }
+            writeManifest(levels);
+            versionLock.lock();
+            try {
+                List<Memtable> immutables = new ArrayList<>(current.immutables);
+                immutables.remove(memtable);
+                install(new Version(current.memtable, immutables, levels));
+            } finally {
+                versionLock.unlock();
+            }
+            for (File file: memtable.logs) {
+                if (!file.delete()) {
+                    System.out.println("Failed to delete " + file);
+                }
+            }
+            compactLevels();
+        } catch (IOException | UncheckedIOException e) {
+            // the memtable stays frozen and is retried by the next flush
+            System.out.println("Flush failed: " + e.getLocalizedMessage());
+        } finally {
+            release(version);
+            versionLock.lock();
+            --pendingFlushes;
+            flushed.signalAll();
+            versionLock.unlock();
+        }
+    }
+
+    /**
+     * Run compactions until every level is within its size limit.
+     * @throws IOException
+     */
+    private void compactLevels() throws IOException {
+        boolean compacted = true;
+        while (compacted) {
+            Version version = acquire();
+            try {
+                compacted = compactOnce(version.levels);
+            } finally {
+                release(version);
+            }
+        }
+    }
+
+    /**
+     * Pick one compaction and run it: all of level 0, or one table of the first level
+     * over its limit, merged with the overlapping tables of the next level.
+     * @param levels levels of the current version
+     * @return false if there was nothing to compact
+     * @throws IOException
+     */
+    private boolean compactOnce(List<List<KVSSTable>> levels) throws IOException {
+        int level = -1;
+        List<KVSSTable> inputs = new ArrayList<>();
+        if (levels.get(0).size() >= L0_COMPACTION_TRIGGER) {
+            level = 0;
+            inputs.addAll(levels.get(0));
+        } else {
+            for (int i = 1; i < MAX_LEVELS - 1; ++i) {
+                if (levelBytes(levels.get(i)) > maxBytes(i)) {
+                    level = i;
+                    inputs.add(pickTable(levels.get(i), i));
+                    break;
+                }
+            }
+        }
+        if (level < 0) {
+            return false;
+        }
+
+        String minKey = inputs.get(0).minKey, maxKey = inputs.get(0).maxKey;
+        for (KVSSTable table: inputs) {
+            minKey = table.minKey.compareTo(minKey) < 0 ? table.minKey : minKey;
+            maxKey = table.maxKey.compareTo(maxKey) > 0 ? table.maxKey : maxKey;
+        }
+        List<KVSSTable> overlapping = overlapping(levels.get(level + 1), minKey, maxKey);
+        boolean bottom = true;
+        for (int i = level + 2; i < MAX_LEVELS; ++i) {
+            if (!overlapping(levels.get(i), minKey, maxKey).isEmpty()) {
+                bottom = false;
+            }
+        }
+
+        // newer tables first: level 0 is newest first, and level n is newer than level n + 1
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        for (KVSSTable table: inputs) {
+            sources.add(table.iterator(null, null));
+        }
+        for (KVSSTable table: overlapping) {
+            sources.add(table.iterator(null, null));
+        }
+        long inputBytes = levelBytes(inputs) + levelBytes(overlapping);
+        compactionCounters.start(inputBytes);
+        Iterator<Map.Entry<String, String>> merged = throttle(new KVMergingIterator(sources));
+        if (bottom) {
+            merged = skipTombstones(merged);
+        }
+        List<KVSSTable> outputs = new ArrayList<>();
+        try {
+            while (merged.hasNext()) {
+                long id = nextFileId.getAndIncrement();
+                KVSSTable table = KVSSTable.write(tableFile(id), id, merged, TARGET_TABLE_SIZE, compression, memoryMapped);
+                if (table != null) {
+                    outputs.add(table);
+                    compactionCounters.written(table.size);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            compactionCounters.abort();
+            for (KVSSTable table: outputs) {
+                table.close();
+                table.file.delete();
+            }
+            throw e;
+        }
+        compactionCounters.finish(inputBytes, levelBytes(outputs));
+
+        List<List<KVSSTable>> next = copyLevels(current.levels);
+        next.get(level).removeAll(inputs);
+        next.get(level + 1).removeAll(overlapping);
+        next.get(level + 1).addAll(outputs);
+        sortByMinKey(next.get(level + 1));
+        writeManifest(next);
+        versionLock.lock();
+        try {
+            for (KVSSTable table: inputs) {
+                table.markObsolete();
+            }
+            for (KVSSTable table: overlapping) {
+                table.markObsolete();
+            }
+            install(new Version(current.memtable, current.immutables, next));
+        } finally {
+            versionLock.unlock();
+        }
+        compactPointers[level] = maxKey;
+        return true;
+    }
+
+    /**
+     * Sorted iterators, one per contiguous piece of the hash range, that merge every
+     * part of the given version. Tombstones are returned with a null value.
+     * @param memtable contents of the active memtable of the version, or a copy of them
+     */
+    private List<Iterator<Map.Entry<String, String>>> rangeIterators(Version version, NavigableMap<String, String> memtable,
+                                                                     String lowerExclusive, String upperInclusive) {
+        List<Iterator<Map.Entry<String, String>>> iterators = new ArrayList<>(2);
+        String from = KVHashRange.lowerBound(lowerExclusive);
+        String to = KVHashRange.upperBound(upperInclusive);
+        if (lowerExclusive.compareTo(upperInclusive) > 0) {
+            // wrap around: the tail of the ring, then the head
+            iterators.add(mergedIterator(version, memtable, from, null));
+            iterators.add(mergedIterator(version, memtable, null, to));
+        } else {
+            iterators.add(mergedIterator(version, memtable, from, to));
+        }
+        return iterators;
+    }
+
+    private Iterator<Map.Entry<String, String>> mergedIterator(Version version, NavigableMap<String, String> memtable,
+                                                               String fromInclusive, String toExclusive) {
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        sources.add(entries(memtable, fromInclusive, toExclusive));
+        for (Memtable immutable: version.immutables) {
+            sources.add(entries(immutable.map, fromInclusive, toExclusive));
+        }
+        for (List<KVSSTable> level: version.levels) {
+            for (KVSSTable table: level) {
+                if (table.overlaps(fromInclusive, toExclusive)) {
+                    sources.add(table.iterator(fromInclusive, toExclusive));
+                }
+            }
+        }
+        return new KVMergingIterator(sources);
+    }
+
+    /**
+     * Entries of a memtable in [fromInclusive, toExclusive), with tombstones turned into null values
+     */
+    private static Iterator<Map.Entry<String, String>> entries(NavigableMap<String, String> map,
+                                                               String fromInclusive, String toExclusive) {
+        NavigableMap<String, String> view = map;
+        if (fromInclusive != null) {
+            view = view.tailMap(fromInclusive, true);
+        }
+        if (toExclusive != null) {
+            view = view.headMap(toExclusive, false);
+        }
+        final Iterator<Map.Entry<String, String>> it = view.entrySet().iterator();
+        return new Iterator<Map.Entry<String, String>>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public Map.Entry<String, String> next() {
+                Map.Entry<String, String> entry = it.next();
+                String value = entry.getValue() == TOMBSTONE ? null : entry.getValue();
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), value);
+            }
+        };
+    }
+
+    /**
+     * Pace the merged entries of a compaction by the rate limit and count them as read.
+     * Entry sizes are estimated from their length in characters.
+     */
+    private Iterator<Map.Entry<String, String>> throttle(final Iterator<Map.Entry<String, String>> it) {
+        return new Iterator<Map.Entry<String, String>>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public Map.Entry<String, String> next() {
+                Map.Entry<String, String> entry = it.next();
+                long bytes = KVRecord.HEADER_SIZE + entry.getKey().length()
+                        + (entry.getValue() == null ? 0 : entry.getValue().length());
+                try {
+                    rateLimiter.acquire(bytes);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException("Compaction interrupted"));
+                }
+                compactionCounters.read(bytes);
+                return entry;
+            }
+        };
+    }
+
+    private static Iterator<Map.Entry<String, String>> skipTombstones(final Iterator<Map.Entry<String, String>> it) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (it.hasNext()) {
+                    Map.Entry<String, String> entry = it.next();
+                    if (entry.getValue() != null) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    private Version acquire() {
+        versionLock.lock();
+        try {
+            Version version = current;
+            ++version.refs;
+            return version;
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    private void release(Version version) {
+        versionLock.lock();
+        try {
+            if (--version.refs == 0) {
+                version.releaseTables();
+            }
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    /**
+     * Make the given version current. The caller holds versionLock.
+     */
+    private void install(Version version) {
+        Version old = current;
+        current = version;
+        if (--old.refs == 0) {
+            old.releaseTables();
+        }
+    }
+
+    private void openLog(Memtable memtable) throws IOException {
+        File file = logFile(nextFileId.getAndIncrement());
+        log = new KVWriteAheadLog(file, FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        memtable.logs.add(file);
+    }
+
+    /**
+     * Sync and close the log of the active memtable. Writers still waiting in sync()
+     * for this log find it closed and return, their records being on disk already.
+     */
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.sync();
+            } catch (IOException e) {
+                System.out.println(e.getLocalizedMessage());
+            }
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.out.println(e.getLocalizedMessage());
+            }
+            log = null;
+        }
+    }
+
+    /**
+     * Load the records of a memtable log, ignoring a torn tail or batch.
+     */
+    private void replay(File file, final Memtable memtable) throws IOException {
+        KVWriteAheadLog.scan(file, file.length(), new KVWriteAheadLog.RecordVisitor() {
+            public void visit(KVRecord record, long offset) {
+                memtable.map.put(record.key, record.isTombstone() ? TOMBSTONE : record.value);
+                memtable.size.addAndGet(record.length());
+            }
+        });
+        memtable.logs.add(file);
+    }
+
+    /**
+     * Open the tables listed in the manifest.
+     * @param levels levels to fill
+     * @return ids of the tables in use
+     * @throws IOException
+     */
+    private Set<Long> readManifest(List<List<KVSSTable>> levels) throws IOException {
+        Set<Long> live = new HashSet<>();
+        File manifest = new File(dbPath + MANIFEST);
+        if (!manifest.exists()) {
+            return live;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                int level = Integer.parseInt(tokens[0]);
+                long id = Long.parseLong(tokens[1]);
+                levels.get(level).add(KVSSTable.open(tableFile(id), id, memoryMapped));
+                live.add(id);
+            }
+        } finally {
+            reader.close();
+        }
+        Collections.sort(levels.get(0), new Comparator<KVSSTable>() {
+            public int compare(KVSSTable a, KVSSTable b) {
+                return Long.compare(b.id, a.id);
+            }
+        });
+        for (int i = 1; i < MAX_LEVELS; ++i) {
+            sortByMinKey(levels.get(i));
+        }
+        return live;
+    }
+
+    /**
+     * Atomically replace the manifest with the given levels.
+     */
+    private void writeManifest(List<List<KVSSTable>> levels) throws IOException {
+        File temp = new File(dbPath + MANIFEST + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos));
+        try {
+            for (int i = 0; i < levels.size(); ++i) {
+                for (KVSSTable table: levels.get(i)) {
+                    writer.write(i + " " + table.id);
+                    writer.newLine();
+                }
+            }
+            writer.flush();
+            fos.getFD().sync();
+        } finally {
+            writer.close();
+        }
+        Files.move(temp.toPath(), new File(dbPath + MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private KVSSTable pickTable(List<KVSSTable> level, int i) {
+        // round robin through the key space so that every table gets compacted eventually
+        if (compactPointers[i] != null) {
+            for (KVSSTable table: level) {
+                if (table.minKey.compareTo(compactPointers[i]) > 0) {
+                    return table;
+                }
+            }
+        }
+        return level.get(0);
+    }
+
+    private static KVSSTable findTable(List<KVSSTable> level, String key) {
+        int low = 0, high = level.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            KVSSTable table = level.get(mid);
+            if (key.compareTo(table.minKey) < 0) {
+                high = mid - 1;
+            } else if (key.compareTo(table.maxKey) > 0) {
+                low = mid + 1;
+            } else {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    private static List<KVSSTable> overlapping(List<KVSSTable> level, String minKey, String maxKey) {
+        List<KVSSTable> tables = new ArrayList<>();
+        for (KVSSTable table: level) {
+            if (table.maxKey.compareTo(minKey) >= 0 && table.minKey.compareTo(maxKey) <= 0) {
+                tables.add(table);
+            }
+        }
+        return tables;
+    }
+
+    private static long levelBytes(List<KVSSTable> level) {
+        long bytes = 0;
+        for (KVSSTable table: level) {
+            bytes += table.size;
+        }
+        return bytes;
+    }
+
+    private static long maxBytes(int level) {
+        long bytes = L1_MAX_BYTES;
+        for (int i = 1; i < level; ++i) {
+            bytes *= LEVEL_SIZE_MULTIPLIER;
+        }
+        return bytes;
+    }
+
+    private static void sortByMinKey(List<KVSSTable> level) {
+        Collections.sort(level, new Comparator<KVSSTable>() {
+            public int compare(KVSSTable a, KVSSTable b) {
+                return a.minKey.compareTo(b.minKey);
+            }
+        });
+    }
+
+    private static List<List<KVSSTable>> newLevels() {
+        List<List<KVSSTable>> levels = new ArrayList<>(MAX_LEVELS);
+        for (int i = 0; i < MAX_LEVELS; ++i) {
+            levels.add(new ArrayList<KVSSTable>());
+        }
+        return levels;
+    }
+
+    private static List<List<KVSSTable>> copyLevels(List<List<KVSSTable>> levels) {
+        List<List<KVSSTable>> copy = new ArrayList<>(levels.size());
+        for (List<KVSSTable> level: levels) {
+            copy.add(new ArrayList<>(level));
+        }
+        return copy;
+    }
+
+    private ExecutorService newBackground() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "lsm-background");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void stopBackground() {
+        background.shutdown();
+        try {
+            while (!background.awaitTermination(1, TimeUnit.SECONDS)) {
+                System.out.println("Waiting for background flush/compaction to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long fileId(String name, String prefix, String suffix) {
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File tableFile(long id) {
+        return new File(dbPath + TABLE_PREFIX + id + TABLE_SUFFIX);
+    }
+
+    private File logFile(long id) {
+        return new File(dbPath + LOG_PREFIX + id + LOG_SUFFIX);
+    }
+}
@@ -0,0 +1,997 @@
+package com.company;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Bitcask style storage engine.
+ * Every put/delete is appended to the active segment file and an in-memory key directory
+ * maps each live key to the position of its value, so a put is one sequential write
+ * and a get is one positioned read.
+ * Segments are sequences of KVRecord. The active segment is a KVWriteAheadLog, so
+ * concurrent writers waiting in sync() share one fsync.
+ * Live keys are also indexed by KVHashRange.compositeKey, so that range operations only
+ * visit the keys in the range.
+ *
+ * A background compactor rewrites sealed segments once enough of them is overwritten or
+ * deleted data, keeping only the records the key directory points to. The rewritten segment
+ * keeps its id, so replay order is unchanged, and replaces the old file with an atomic rename.
+ * Readers retain the segment they read from, so they are never blocked by a compaction.
+ *
+ * Every sealed segment gets a hint file listing the key, value position and tombstone flag of
+ * its records, written in the background. On open, segments with a valid hint are indexed from
+ * it without reading their data, so only the tail written since the last clean close is scanned.
+ */
+class KVLogEngine implements IKVStorageEngine {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int HINT_MAGIC = 0x4B564849; // "KVHI"
+    private static final long MAX_SEGMENT_SIZE = 64L << 20;
+    private static final long COMPACTION_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Position of the latest value of a key
+     */
+    private static class Location {
+        final Segment segment;
+        final long valueOffset;
+        final int valueLength; // stored bytes
+        final int codec; // 0 if the value is not compressed
+        final int recordLength;
+
+        Location(Segment segment, long valueOffset, int valueLength, int codec, int recordLength) {
+            this.segment = segment;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.codec = codec;
+            this.recordLength = recordLength;
+        }
+    }
+
+    /**
+     * Open segment file. The engine holds one reference while the segment is in use and
+     * readers retain it while they read, so that a segment replaced by a compaction is only
+     * closed once the last reader lets go of it.
+     */
+    private class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        // bytes of the records the key directory points to
+        final AtomicLong liveBytes = new AtomicLong();
+        // bytes of tombstones, which cannot be dropped while older segments exist;
+        // written under appendLock while the segment is active
+        volatile long tombstoneBytes = 0;
+        volatile boolean obsolete = false; // the file is deleted once the segment is closed
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private final ReentrantLock mappingLock = new ReentrantLock();
+        private volatile KVMappedFile mapping;
+
+        Segment(int id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        /**
+         * @return false if the segment is already closed
+         */
+        boolean retain() {
+            while (true) {
+                int count = refs.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                if (mapping != null) {
+                    mapping.close();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.out.println(e.getLocalizedMessage());
+                }
+                if (obsolete && !file.delete()) {
+                    // TODO: logging
+                    System.out.println("Failed to delete " + file);
+                }
+            }
+        }
+
+        /**
+         * Fill dst with the bytes at the given position. The caller holds a reference.
+         * @throws IOException
+         */
+        void read(long position, byte[] dst) throws IOException {
+            if (memoryMapped) {
+                mapping().read(position, dst, 0, dst.length);
+            } else {
+                readFully(channel, ByteBuffer.wrap(dst), position);
+            }
+        }
+
+        /**
+         * @return bytes that a compaction would reclaim
+         * @param oldest whether no older segment exists, so that tombstones can be dropped
+         */
+        long garbageBytes(boolean oldest) throws IOException {
+            return Math.max(0, channel.size() - liveBytes.get() - (oldest ? 0 : tombstoneBytes));
+        }
+
+        private KVMappedFile mapping() throws IOException {
+            KVMappedFile mapping = this.mapping;
+            if (mapping == null) {
+                mappingLock.lock();
+                try {
+                    mapping = this.mapping;
+                    if (mapping == null) {
+                        mapping = new KVMappedFile(channel);
+                        this.mapping = mapping;
+                    }
+                } finally {
+                    mappingLock.unlock();
+                }
+            }
+            return mapping;
+        }
+    }
+
+    private final String dbPath;
+    private final ConcurrentHashMap<String, Location> keyDir = new ConcurrentHashMap<>();
+    // composite key -> key, for every key in keyDir
+    private final ConcurrentSkipListMap<String, String> hashIndex = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final boolean memoryMapped;
+    private final KVCompression compression;
+
+    // appends of concurrent writers are serialized so that segments roll once
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private volatile KVWriteAheadLog active;
+    private volatile Segment activeSegment;
+    private int activeId = -1;
+
+    // held while a segment is rewritten, and by clear/close so that they never run during a rewrite
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private final KVRateLimiter rateLimiter;
+    private final double garbageRatio;
+    private final KVCompactionStats.Counters compactionCounters = new KVCompactionStats.Counters();
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * Open the segments in the given directory and rebuild the key directory from them,
+     * then start the background compactor.
+     * @param dbPath path of an existing database directory, ending with '/'
+     * @param options storage options
+     * @throws IOException
+     */
+    public KVLogEngine(String dbPath, KVStorageOptions options) throws IOException {
+        this.dbPath = dbPath;
+        this.memoryMapped = options.getReadMode() == KVStorageOptions.ReadMode.MemoryMapped;
+        this.compression = KVCompression.of(options);
+        this.rateLimiter = new KVRateLimiter(options.getCompactionBytesPerSecond());
+        this.garbageRatio = options.getCompactionGarbageRatio();
+        List<Integer> ids = listSegmentIds();
+        List<Segment> unhinted = new ArrayList<>();
+        for (int i = 0; i < ids.size(); ++i) {
+            int id = ids.get(i);
+            File file = segmentFile(id);
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, file, channel);
+            segments.put(id, segment);
+            if (!loadHint(segment)) {
+                long validSize = load(segment);
+                if (validSize < channel.size()) {
+                    // torn write at the tail, drop it so later appends stay readable
+                    System.out.println("Truncating " + file + " at " + validSize);
+                    channel.truncate(validSize);
+                }
+                if (i < ids.size() - 1) {
+                    unhinted.add(segment);
+                }
+            }
+            if (i == ids.size() - 1) {
+                active = new KVWriteAheadLog(file, channel);
+                activeSegment = segment;
+                activeId = id;
+            }
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "log-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // TODO: logging
+                    System.out.println("Background compaction failed: " + e.getLocalizedMessage());
+                }
+            }
+        }, COMPACTION_INTERVAL_MILLIS, COMPACTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        for (Segment segment: unhinted) {
+            scheduleHint(segment);
+        }
+    }
+
+    public String get(String key) throws IOException {
+        while (true) {
+            Location location = keyDir.get(key);
+            if (location == null) {
+                return null;
+            }
+            if (location.segment.retain()) {
+                try {
+                    return read(location);
+                } finally {
+                    location.segment.release();
+                }
+            }
+            // the segment was just replaced by a compaction, which has moved the key to the new one
+        }
+    }
+
+    public boolean contains(String key) {
+        return keyDir.containsKey(key);
+    }
+
+    /**
+     * Keys are grouped by segment and read in file order, retaining each segment once.
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        Collection<String> pending = keys;
+        while (!pending.isEmpty()) {
+            Map<Segment, List<Map.Entry<String, Location>>> bySegment = new HashMap<>();
+            for (String key: pending) {
+                Location location = keyDir.get(key);
+                if (location == null) {
+                    continue;
+                }
+                List<Map.Entry<String, Location>> locations = bySegment.get(location.segment);
+                if (locations == null) {
+                    locations = new ArrayList<>();
+                    bySegment.put(location.segment, locations);
+                }
+                locations.add(new AbstractMap.SimpleImmutableEntry<>(key, location));
+            }
+            List<String> retry = new ArrayList<>();
+            for (Map.Entry<Segment, List<Map.Entry<String, Location>>> entry: bySegment.entrySet()) {
+                Segment segment = entry.getKey();
+                List<Map.Entry<String, Location>> locations = entry.getValue();
+                if (!segment.retain()) {
+                    // the segment was just replaced by a compaction, look its keys up again
+                    for (Map.Entry<String, Location> location: locations) {
+                        retry.add(location.getKey());
+                    }
+                    continue;
+                }
+                try {
+                    Collections.sort(locations, new Comparator<Map.Entry<String, Location>>() {
+                        public int compare(Map.Entry<String, Location> a, Map.Entry<String, Location> b) {
+                            return Long.compare(a.getValue().valueOffset, b.getValue().valueOffset);
+                        }
+                    });
+                    for (Map.Entry<String, Location> location: locations) {
+                        values.put(location.getKey(), read(location.getValue()));
+                    }
+                } finally {
+                    segment.release();
+                }
+            }
+            pending = retry;
+        }
+        return values;
+    }
+
+    public KVStorageResult.ResultType put(String key, String value) throws IOException {
+        boolean exists = keyDir.containsKey(key);
+        try {
+            index(key, append(key, value));
+        } catch (IOException ioe) {
+            System.out.println(ioe.getLocalizedMessage());
+            return exists ? KVStorageResult.ResultType.PUT_UPDATE_ERROR : KVStorageResult.ResultType.PUT_ERROR;
+        }
+        return exists ? KVStorageResult.ResultType.PUT_UPDATE_SUCCESS : KVStorageResult.ResultType.PUT_SUCCESS;
+    }
+
+    public boolean delete(String key) throws IOException {
+        if (!keyDir.containsKey(key)) {
+            return false;
+        }
+        append(key, null);
+        unindex(key);
+        return true;
+    }
+
+    public boolean writeBatch(Map<String, String> batch) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<ByteBuffer> records = new ArrayList<>();
+        long length = 0;
+        for (Map.Entry<String, String> entry: batch.entrySet()) {
+            if (entry.getValue() == null && !keyDir.containsKey(entry.getKey())) {
+                continue;
+            }
+            ByteBuffer record = KVRecord.encode(entry.getKey(), entry.getValue(), compression);
+            keys.add(entry.getKey());
+            records.add(record);
+            length += record.remaining();
+        }
+        if (records.isEmpty()) {
+            return true;
+        }
+        appendLock.lock();
+        try {
+            // a batch is never split across segments
+            if (active == null || (active.size() > 0 && active.size() + length > MAX_SEGMENT_SIZE)) {
+                roll();
+            }
+            long offset;
+            try {
+                offset = active.appendBatch(records);
+            } catch (IOException ioe) {
+                System.out.println(ioe.getLocalizedMessage());
+                return false;
+            }
+            for (int i = 0; i < records.size(); ++i) {
+                ByteBuffer record = records.get(i);
+                if (batch.get(keys.get(i)) == null) {
+                    unindex(keys.get(i));
+                    activeSegment.tombstoneBytes += record.limit();
+                } else {
+                    index(keys.get(i), location(offset, record));
+                }
+                offset += record.limit();
+            }
+            return true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public HashMap<String, String> getInRange(String lowerExclusive, String upperInclusive) throws IOException {
+        HashMap<String, String> kvPairs = new HashMap<>();
+        for (NavigableMap<String, String> view: KVHashRange.subMaps(hashIndex, lowerExclusive, upperInclusive)) {
+            for (String key: view.values()) {
+                String value = get(key);
+                if (value != null) {
+                    kvPairs.put(key, value);
+                }
+            }
+        }
+        return kvPairs;
+    }
+
+    /**
+     * Segments are append-only, so the locations of the keys in the range are a snapshot of it.
+     * Only the locations are copied and their segments retained; values are read as the cursor advances.
+     */
+    public IKVCursor openCursor(String lowerExclusive, String upperInclusive) {
+        List<String> keys = new ArrayList<>();
+        List<Location> locations = new ArrayList<>();
+        Set<Segment> retained = Collections.newSetFromMap(new IdentityHashMap<Segment, Boolean>());
+        for (NavigableMap<String, String> view: KVHashRange.subMaps(hashIndex, lowerExclusive, upperInclusive)) {
+            for (String key: view.values()) {
+                Location location = keyDir.get(key);
+                while (location != null && !retained.contains(location.segment) && !location.segment.retain()) {
+                    location = keyDir.get(key);
+                }
+                if (location != null) {
+                    retained.add(location.segment);
+                    keys.add(key);
+                    locations.add(location);
+                }
+            }
+        }
+        return new LogCursor(keys, locations, retained);
+    }
+
+    private class LogCursor implements IKVCursor {
+        private final List<String> keys;
+        private final List<Location> locations;
+        private final Set<Segment> retained;
+        private int position = -1;
+        private String value;
+
+        LogCursor(List<String> keys, List<Location> locations, Set<Segment> retained) {
+            this.keys = keys;
+            this.locations = locations;
+            this.retained = retained;
+        }
+
+        public boolean next() throws IOException {
+            if (position < keys.size()) {
+                ++position;
+            }
+            value = position < keys.size() ? read(locations.get(position)) : null;
+            return value != null;
+        }
+
+        public String getKey() {
+            return position < keys.size() ? keys.get(position) : null;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void close() {
+            position = keys.size();
+            value = null;
+            for (Segment segment: retained) {
+                segment.release();
+            }
+            retained.clear();
+        }
+    }
+
+    public void deleteInRange(String lowerExclusive, String upperInclusive) {
+        for (NavigableMap<String, String> view: KVHashRange.subMaps(hashIndex, lowerExclusive, upperInclusive)) {
+            for (String key: new ArrayList<>(view.values())) {
+                try {
+                    delete(key);
+                } catch (IOException e) {
+                    // TODO: logging
+                    System.out.println("Failed to delete " + key + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite every sealed segment whose share of garbage reached the configured ratio, oldest first.
+     * Runs concurrently with every other operation; the rewrites are rate limited.
+     */
+    public void compact() throws IOException {
+        Segment current = activeSegment;
+        if (current == null) {
+            return;
+        }
+        for (Segment segment: new ArrayList<>(segments.headMap(current.id).values())) {
+            compactionLock.lock();
+            try {
+                // skip segments that were cleared or compacted by another caller meanwhile
+                if (segments.get(segment.id) != segment) {
+                    continue;
+                }
+                boolean oldest = segments.firstKey() == segment.id;
+                long size = segment.channel.size();
+                if (size > 0 && segment.garbageBytes(oldest) >= size * garbageRatio) {
+                    rewrite(segment, oldest);
+                }
+            } finally {
+                compactionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Debt is the garbage of the sealed segments, whatever their ratio.
+     */
+    public KVCompactionStats getCompactionStats() {
+        long debt = 0;
+        Segment current = activeSegment;
+        Map.Entry<Integer, Segment> oldest = segments.firstEntry();
+        if (current != null && oldest != null) {
+            for (Segment segment: segments.headMap(current.id).values()) {
+                try {
+                    debt += segment.garbageBytes(segment.id == oldest.getKey());
+                } catch (IOException e) {
+                    // closed by a compaction or close meanwhile
+                }
+            }
+        }
+        return compactionCounters.snapshot(debt);
+    }
+
+    public void clear() {
+        compactionLock.lock();
+        try {
+            closeSegments();
+            keyDir.clear();
+            hashIndex.clear();
+            File[] files = new File(dbPath).listFiles();
+            if (files != null) {
+                for (File file: files) {
+                    if (!file.delete()) {
+                        // TODO: logging
+                        System.out.println("Failed to delete " + file);
+                    }
+                }
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    public void sync() throws IOException {
+        KVWriteAheadLog log = active;
+        if (log != null) {
+            log.sync();
+        }
+    }
+
+    public void close() throws IOException {
+        // a rewrite waiting on the rate limiter is interrupted and leaves the segment as it is
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactionLock.lock();
+        try {
+            sync();
+            // hints that were not written yet, and the active segment so that a clean restart scans nothing
+            for (Segment segment: segments.values()) {
+                if (segment == activeSegment || !hintFile(segment.id).exists()) {
+                    try {
+                        writeHint(segment);
+                    } catch (IOException e) {
+                        // TODO: logging
+                        System.out.println("Failed to write hint of " + segment.file + ": " + e.getLocalizedMessage());
+                    }
+                }
+            }
+        } finally {
+            closeSegments();
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Append a record to the active segment, rolling to a new segment if it is full.
+     * On failure the segment is truncated back so that no partial record is left behind.
+     * The record is not forced to disk, see sync().
+     * @param key given key
+     * @param value given value; null for a tombstone
+     * @return location of the appended value
+     * @throws IOException
+     */
+    private Location append(String key, String value) throws IOException {
+        ByteBuffer record = KVRecord.encode(key, value, compression);
+        int recordLen = record.remaining();
+        appendLock.lock();
+        try {
+            if (active == null || (active.size() > 0 && active.size() + recordLen > MAX_SEGMENT_SIZE)) {
+                roll();
+            }
+            Location location = location(active.append(record), record);
+            if (value == null) {
+                // kept while older segments exist, so not garbage of the segment yet
+                activeSegment.tombstoneBytes += recordLen;
+            }
+            return location;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Point a key at its latest value, adding it to the hash index if it is new.
+     * Callers hold the stripe lock of the key.
+     */
+    private void index(String key, Location location) {
+        location.segment.liveBytes.addAndGet(location.recordLength);
+        Location previous = keyDir.put(key, location);
+        if (previous == null) {
+            hashIndex.put(KVHashRange.compositeKey(key), key);
+        } else {
+            previous.segment.liveBytes.addAndGet(-previous.recordLength);
+        }
+    }
+
+    /**
+     * Drop a key from the key directory and the hash index.
+     * Callers hold the stripe lock of the key.
+     */
+    private void unindex(String key) {
+        Location previous = keyDir.remove(key);
+        if (previous != null) {
+            hashIndex.remove(KVHashRange.compositeKey(key));
+            previous.segment.liveBytes.addAndGet(-previous.recordLength);
+        }
+    }
+
+    /**
+     * @param offset offset of the record in the active segment
+     * @param record encoded record
+     * @return location of the value of the record
+     */
+    private Location location(long offset, ByteBuffer record) {
+        int valueOffset = KVRecord.valueOffset(record);
+        return new Location(activeSegment, offset + valueOffset, record.limit() - valueOffset,
+                KVRecord.codecOf(record), record.limit());
+    }
+
+    /**
+     * The caller holds a reference to the segment of the location.
+     * @return the value stored at the given location
+     * @throws IOException
+     */
+    private String read(Location location) throws IOException {
+        byte[] bytes = new byte[location.valueLength];
+        location.segment.read(location.valueOffset, bytes);
+        return KVRecord.decodeValue(bytes, location.codec);
+    }
+
+    /**
+     * Seal the active segment and start a new one.
+     * The sealed segment is synced first, since sync() only looks at the active one.
+     * @throws IOException
+     */
+    private void roll() throws IOException {
+        if (active != null) {
+            active.sync();
+            scheduleHint(activeSegment);
+        }
+        int id = activeId + 1;
+        File file = segmentFile(id);
+        KVWriteAheadLog log = new KVWriteAheadLog(file);
+        Segment segment = new Segment(id, file, log.getChannel());
+        segments.put(id, segment);
+        activeSegment = segment;
+        active = log;
+        activeId = id;
+    }
+
+    /**
+     * Replay a segment into the key directory.
+     * @param segment segment to replay
+     * @return size of the valid prefix of the segment
+     * @throws IOException
+     */
+    private long load(final Segment segment) throws IOException {
+        return KVWriteAheadLog.scan(segment.file, segment.channel.size(), new KVWriteAheadLog.RecordVisitor() {
+            public void visit(KVRecord record, long offset) {
+                if (record.isTombstone()) {
+                    unindex(record.key);
+                    segment.tombstoneBytes += record.length();
+                } else {
+                    index(record.key, new Location(segment, offset + record.valueOffset(), record.valueLength,
+                            record.codec, record.length()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Replay the hint file of a segment into the key directory.
+     * @param segment segment to replay
+     * @return false if the segment has no hint file or it does not match the segment
+     * @throws IOException if the hint file matches the segment but cannot be parsed
+     */
+    private boolean loadHint(Segment segment) throws IOException {
+        File hint = hintFile(segment.id);
+        if (!hint.exists()) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(hint.toPath()));
+        int end = buffer.limit() - 4;
+        if (end < 12) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, end);
+        if ((int) crc.getValue() != buffer.getInt(end) || buffer.getInt() != HINT_MAGIC
+                || buffer.getLong() != segment.channel.size()) {
+            System.out.println("Ignoring stale hint " + hint);
+            return false;
+        }
+        buffer.limit(end);
+        try {
+            while (buffer.hasRemaining()) {
+                byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                long valueOffset = buffer.getLong();
+                int valueLength = buffer.getInt();
+                int codec = buffer.get() & 0xFF;
+                int recordLength = KVRecord.HEADER_SIZE + key.length + Math.max(valueLength, 0);
+                if (valueLength == KVRecord.TOMBSTONE) {
+                    unindex(new String(key, StandardCharsets.UTF_8));
+                    segment.tombstoneBytes += recordLength;
+                } else {
+                    index(new String(key, StandardCharsets.UTF_8),
+                            new Location(segment, valueOffset, valueLength, codec, recordLength));
+                }
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Corrupted hint " + hint);
+        }
+        return true;
+    }
+
+    /**
+     * Write the hint file of a sealed segment in the background
+     */
+    private void scheduleHint(final Segment segment) {
+        compactor.execute(new Runnable() {
+            public void run() {
+                compactionLock.lock();
+                try {
+                    // skip segments that were cleared or compacted meanwhile
+                    if (segments.get(segment.id) == segment) {
+                        writeHint(segment);
+                    }
+                } catch (IOException e) {
+                    // TODO: logging
+                    System.out.println("Failed to write hint of " + segment.file + ": " + e.getLocalizedMessage());
+                } finally {
+                    compactionLock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the hint file of a sealed segment: every record in order, without its value.
+     * Layout: magic(4) segmentSize(8) { keyLen(4) key valueOffset(8) valueLen(4) codec(1) }* crc(4)
+     * where valueLen == -1 marks a tombstone and the crc covers everything before it.
+     * The caller holds compactionLock.
+     * @param segment sealed segment
+     * @throws IOException
+     */
+    private void writeHint(Segment segment) throws IOException {
+        long size = segment.channel.size();
+        File hint = hintFile(segment.id);
+        File temp = new File(hint.getPath() + TEMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(temp);
+        CRC32 crc = new CRC32();
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 64 << 10));
+        try {
+            out.writeInt(HINT_MAGIC);
+            out.writeLong(size);
+            long validSize = KVWriteAheadLog.scan(segment.file, size, new KVWriteAheadLog.RecordVisitor() {
+                public void visit(KVRecord record, long offset) throws IOException {
+                    byte[] key = record.key.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(key.length);
+                    out.write(key);
+                    out.writeLong(offset + record.valueOffset());
+                    out.writeInt(record.isTombstone() ? KVRecord.TOMBSTONE : record.valueLength);
+                    out.writeByte(record.codec);
+                }
+            });
+            if (validSize != size) {
+                // the hint would hide the torn tail from the truncation done by a scan on open
+                throw new IOException("Torn tail in " + segment.file);
+            }
+            out.flush();
+            fos.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+            fos.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), hint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete the hint file of a segment that is about to change, durably, so that
+     * it is never taken for the hint of the new content.
+     */
+    private void deleteHint(int id) throws IOException {
+        File hint = hintFile(id);
+        if (hint.exists()) {
+            if (!hint.delete()) {
+                throw new IOException("Failed to delete " + hint);
+            }
+            forceDirectory();
+        }
+    }
+
+    /**
+     * Copy the live records of a sealed segment to a new file and rename it over the segment.
+     * Tombstones are kept unless the segment is the oldest, as they still hide older values.
+     * Keys are moved to the new segment only if they were not updated meanwhile; readers of
+     * the old segment keep reading the old file until they release it.
+     * The caller holds compactionLock.
+     * @param segment sealed segment
+     * @param oldest whether no older segment exists
+     * @throws IOException
+     */
+    private void rewrite(final Segment segment, final boolean oldest) throws IOException {
+        final long inputBytes = segment.channel.size();
+        final File temp = new File(segment.file.getPath() + COMPACT_SUFFIX);
+        final List<String> keys = new ArrayList<>();
+        final List<Location> oldLocations = new ArrayList<>();
+        // locations in the new file, whose segment is set once it is opened
+        final List<Location> copies = new ArrayList<>();
+        final long[] written = new long[2]; // bytes written, bytes of kept tombstones
+        compactionCounters.start(inputBytes);
+        FileOutputStream fos = new FileOutputStream(temp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 << 10));
+        boolean done = false;
+        try {
+            try {
+                KVWriteAheadLog.scan(segment.file, inputBytes, new KVWriteAheadLog.RecordVisitor() {
+                    public void visit(KVRecord record, long offset) throws IOException {
+                        throttle(record.length());
+                        compactionCounters.read(record.length());
+                        Location location = keyDir.get(record.key);
+                        boolean live = !record.isTombstone() && location != null && location.segment == segment
+                                && location.valueOffset == offset + record.valueOffset();
+                        // a tombstone of a key that was put again since is no longer needed either
+                        boolean keep = live || (record.isTombstone() && !oldest && location == null);
+                        if (!keep) {
+                            return;
+                        }
+                        ByteBuffer encoded = KVRecord.encode(record.key, record.value, compression);
+                        throttle(encoded.limit());
+                        out.write(encoded.array(), 0, encoded.limit());
+                        if (live) {
+                            int valueOffset = KVRecord.valueOffset(encoded);
+                            keys.add(record.key);
+                            oldLocations.add(location);
+                            copies.add(new Location(null, written[0] + valueOffset, encoded.limit() - valueOffset,
+                                    KVRecord.codecOf(encoded), encoded.limit()));
+                        } else {
+                            written[1] += encoded.limit();
+                        }
+                        written[0] += encoded.limit();
+                        compactionCounters.written(encoded.limit());
+                    }
+                });
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            deleteHint(segment.id);
+            if (written[0] == 0) {
+                // nothing left, the segment goes away once its readers are done
+                segments.remove(segment.id, segment);
+                segment.obsolete = true;
+                segment.release();
+                if (!temp.delete()) {
+                    System.out.println("Failed to delete " + temp);
+                }
+            } else {
+                Files.move(temp.toPath(), segment.file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                forceDirectory();
+                Segment compacted = new Segment(segment.id, segment.file,
+                        FileChannel.open(segment.file.toPath(), StandardOpenOption.READ));
+                compacted.tombstoneBytes = written[1];
+                segments.put(segment.id, compacted);
+                for (int i = 0; i < keys.size(); ++i) {
+                    Location copy = copies.get(i);
+                    Location location = new Location(compacted, copy.valueOffset, copy.valueLength, copy.codec, copy.recordLength);
+                    compacted.liveBytes.addAndGet(location.recordLength);
+                    if (keyDir.replace(keys.get(i), oldLocations.get(i), location)) {
+                        segment.liveBytes.addAndGet(-location.recordLength);
+                    } else {
+                        // updated or deleted meanwhile, the copy is garbage already
+                        compacted.liveBytes.addAndGet(-location.recordLength);
+                    }
+                }
+                // the old file is unlinked by the rename, its readers keep it open until they release it
+                segment.release();
+                try {
+                    writeHint(compacted);
+                } catch (IOException e) {
+                    // the segment is scanned on the next open instead
+                    System.out.println("Failed to write hint of " + compacted.file + ": " + e.getLocalizedMessage());
+                }
+            }
+            compactionCounters.finish(inputBytes, written[0]);
+            done = true;
+        } finally {
+            if (!done) {
+                compactionCounters.abort();
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Wait until the rate limit lets the compactor move the given number of bytes
+     * @throws InterruptedIOException if the engine is closing
+     */
+    private void throttle(long bytes) throws InterruptedIOException {
+        try {
+            rateLimiter.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compaction interrupted");
+        }
+    }
+
+    private List<Integer> listSegmentIds() {
+        List<Integer> ids = new ArrayList<>();
+        File[] files = new File(dbPath).listFiles();
+        if (files != null) {
+            for (File file: files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && (name.endsWith(SEGMENT_SUFFIX + COMPACT_SUFFIX)
+                        || name.endsWith(HINT_SUFFIX + TEMP_SUFFIX))) {
+                    // left over by an interrupted compaction or hint write, the segment itself is intact
+                    if (!file.delete()) {
+                        System.out.println("Failed to delete " + file);
+                    }
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        System.out.println("Ignoring " + file);
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private File segmentFile(int id) {
+        return new File(dbPath + SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private File hintFile(int id) {
+        return new File(dbPath + SEGMENT_PREFIX + id + HINT_SUFFIX);
+    }
+
+    /**
+     * Make the rename of a compacted segment durable
+     */
+    private void forceDirectory() {
+        try {
+            FileChannel dir = FileChannel.open(Paths.get(dbPath), StandardOpenOption.READ);
+            try {
+                dir.force(true);
+            } finally {
+                dir.close();
+            }
+        } catch (IOException e) {
+            // directories cannot be opened on every platform
+        }
+    }
+
+    private void closeSegments() {
+        for (Segment segment: segments.values()) {
+            segment.release();
+        }
+        segments.clear();
+        active = null;
+        activeSegment = null;
+        activeId = -1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.company;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-only memory mapping of a data file, split into fixed size regions.
+ * Files that keep growing (the active log segment) are remapped incrementally: only the
+ * last, partial region and the new ones are mapped again, and bytes that were appended
+ * since the last remap are read through the channel until enough of them accumulate.
+ *
+ * Reads are thread-safe. close() unmaps the regions right away, so the caller must make
+ * sure that no read is in flight.
+ */
+class KVMappedFile implements Closeable {
+
+    private static final int REGION_SIZE = 16 << 20;
+    private static final long REMAP_THRESHOLD = 1 << 20;
+
+    private final FileChannel channel;
+    private final ReentrantLock remapLock = new ReentrantLock();
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+    private volatile long mappedSize = 0;
+
+    /**
+     * @param channel channel of the file; it stays owned by the caller
+     * @throws IOException
+     */
+    KVMappedFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        remap();
+    }
+
+    /**
+     * Copy length bytes at the given position into dst
+     * @throws IOException
+     */
+    void read(long position, byte[] dst, int offset, int length) throws IOException {
+        if (position + length > mappedSize && !remapFor(position + length)) {
+            readFromChannel(ByteBuffer.wrap(dst, offset, length), position);
+            return;
+        }
+        MappedByteBuffer[] regions = this.regions;
+        while (length > 0) {
+            int region = (int) (position / REGION_SIZE);
+            int inRegion = (int) (position % REGION_SIZE);
+            int n = Math.min(length, REGION_SIZE - inRegion);
+            ByteBuffer view = regions[region].duplicate();
+            view.position(inRegion);
+            view.get(dst, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * View of length bytes at the given position, without copying when they lie in one region
+     * @throws IOException
+     */
+    ByteBuffer slice(long position, int length) throws IOException {
+        int inRegion = (int) (position % REGION_SIZE);
+        if (position + length <= mappedSize && inRegion + length <= REGION_SIZE) {
+            ByteBuffer view = regions[(int) (position / REGION_SIZE)].duplicate();
+            view.position(inRegion);
+            view.limit(inRegion + length);
+            return view.slice();
+        }
+        byte[] bytes = new byte[length];
+        read(position, bytes, 0, length);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Unmap every region. No read may run concurrently or afterwards.
+     */
+    public void close() {
+        remapLock.lock();
+        try {
+            for (MappedByteBuffer region: regions) {
+                unmap(region);
+            }
+            regions = new MappedByteBuffer[0];
+            mappedSize = 0;
+        } finally {
+            remapLock.unlock();
+        }
+    }
+
+    /**
+     * Remap if at least REMAP_THRESHOLD bytes were appended since the last remap.
+     * @param required end of the bytes about to be read
+     * @return true if the bytes are now mapped
+     * @throws IOException
+     */
+    private boolean remapFor(long required) throws IOException {
+        if (channel.size() - mappedSize < REMAP_THRESHOLD) {
+            return false;
+        }
+        remap();
+        return required <= mappedSize;
+    }
+
+    private void remap() throws IOException {
+        remapLock.lock();
+        try {
+            long size = channel.size();
+            if (size <= mappedSize) {
+                return;
+            }
+            int count = (int) ((size + REGION_SIZE - 1) / REGION_SIZE);
+            MappedByteBuffer[] next = Arrays.copyOf(regions, count);
+            // the last region may be partial; superseded mappings are released by the GC
+            // since concurrent readers may still hold them
+            for (int i = Math.max(regions.length - 1, 0); i < count; ++i) {
+                long start = (long) i * REGION_SIZE;
+                long length = Math.min(REGION_SIZE, size - start);
+                if (next[i] == null || next[i].capacity() < length) {
+                    next[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                }
+            }
+            regions = next;
+            mappedSize = size;
+        } finally {
+            remapLock.unlock();
+        }
+    }
+
+    private void readFromChannel(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+    }
+
+    /**
+     * Release a mapping without waiting for the GC.
+     * Uses Unsafe.invokeCleaner on Java 9+ and DirectBuffer.cleaner() on Java 8;
+     * if neither is accessible the mapping is left to the GC.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException e) {
+            // Java 8, fall through
+        } catch (Exception e) {
+            return;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // leave it to the GC
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.company;
+
+import java.util.*;
+
+/**
+ * Merge several iterators that are each sorted by key into one sorted iterator.
+ * When more than one source holds a key, the entry of the source that comes first
+ * in the list wins and the others are skipped, so sources are passed newest first.
+ * Entries are returned as is; a null value (tombstone) is left for the caller to interpret.
+ */
+class KVMergingIterator implements Iterator<Map.Entry<String, String>> {
+
+    private static class Head {
+        final Iterator<Map.Entry<String, String>> source;
+        final int rank;
+        Map.Entry<String, String> entry;
+
+        Head(Iterator<Map.Entry<String, String>> source, int rank) {
+            this.source = source;
+            this.rank = rank;
+        }
+    }
+
+    private final PriorityQueue<Head> heads = new PriorityQueue<>(new Comparator<Head>() {
+        public int compare(Head a, Head b) {
+            int cmp = a.entry.getKey().compareTo(b.entry.getKey());
+            return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+        }
+    });
+
+    /**
+     * @param sources sorted iterators, newest first
+     */
+    public KVMergingIterator(List<Iterator<Map.Entry<String, String>>> sources) {
+        for (int i = 0; i < sources.size(); ++i) {
+            Head head = new Head(sources.get(i), i);
+            if (head.source.hasNext()) {
+                head.entry = head.source.next();
+                heads.add(head);
+            }
+        }
+    }
+
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    public Map.Entry<String, String> next() {
+        Head head = heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<String, String> entry = head.entry;
+        advance(head);
+        // drop older versions of the same key
+        while (!heads.isEmpty() && heads.peek().entry.getKey().equals(entry.getKey())) {
+            advance(heads.poll());
+        }
+        return entry;
+    }
+
+    private void advance(Head head) {
+        if (head.source.hasNext()) {
+            head.entry = head.source.next();
+            heads.add(head);
+        }
+    }
+}
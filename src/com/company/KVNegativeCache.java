@@ -0,0 +1,134 @@
+package com.company;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded LRU set of keys known not to be stored, used by KVStorage so that repeated
+ * lookups of absent keys are answered from memory.
+ * This class is thread-safe. Callers must invalidate a key before it is written, while
+ * holding a lock that excludes readers of that key.
+ */
+class KVNegativeCache {
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Boolean> keys;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity maximum number of keys remembered; 0 disables the cache
+     */
+    KVNegativeCache(int capacity) {
+        this.capacity = capacity;
+        this.keys = new BoundedMap(capacity);
+    }
+
+    /**
+     * Keys in access order, dropping the least recently used one beyond the capacity.
+     */
+    private static class BoundedMap extends LinkedHashMap<String, Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        BoundedMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Check whether a key is known to be absent, counting a hit or a miss
+     * @param key given key
+     * @return true if the key is known to be absent
+     */
+    boolean contains(String key) {
+        if (capacity == 0) {
+            return false;
+        }
+        boolean found;
+        lock.lock();
+        try {
+            found = keys.get(key) != null;
+        } finally {
+            lock.unlock();
+        }
+        (found ? hits : misses).incrementAndGet();
+        return found;
+    }
+
+    /**
+     * Remember that a key is absent
+     * @param key given key
+     */
+    void add(String key) {
+        if (capacity == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            keys.put(key, Boolean.TRUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget a key, which is about to be written
+     * @param key given key
+     */
+    void invalidate(String key) {
+        if (capacity == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            keys.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            keys.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return keys.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of lookups answered as absent from memory
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that were not known to be absent and went on to the cache or disk
+     */
+    long getMisses() {
+        return misses.get();
+    }
+}
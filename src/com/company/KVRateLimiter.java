@@ -0,0 +1,58 @@
+package com.company;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket limiting the bytes per second read and written by background work such as
+ * compaction, so that it leaves disk bandwidth to foreground operations.
+ * Up to one second worth of unused bytes can be spent at once.
+ * This class is thread-safe.
+ */
+class KVRateLimiter {
+
+    private final long bytesPerSecond;
+    private final ReentrantLock lock = new ReentrantLock();
+    private double available; // guarded by lock, may go negative when a caller overdraws
+    private long lastRefill; // guarded by lock
+
+    /**
+     * @param bytesPerSecond rate limit; 0 for no limit
+     */
+    KVRateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Wait until the given number of bytes may be transferred.
+     * Requests larger than the rate are let through and paid for by later callers.
+     * @param bytes number of bytes about to be read or written
+     * @throws InterruptedException
+     */
+    void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond == 0 || bytes <= 0) {
+            return;
+        }
+        long waitNanos;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            available = Math.min(bytesPerSecond, available + (now - lastRefill) * bytesPerSecond / 1e9);
+            lastRefill = now;
+            available -= bytes;
+            // the bytes are taken right away, callers arriving meanwhile wait behind them
+            waitNanos = available >= 0 ? 0 : (long) (-available * 1e9 / bytesPerSecond);
+        } finally {
+            lock.unlock();
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
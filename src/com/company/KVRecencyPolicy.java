@@ -0,0 +1,48 @@
+package com.company;
+
+/**
+ * FIFO and LRU strategies of KVCache: the nodes in insertion order, with the oldest at the head,
+ * and under LRU an access moves a node back to the tail.
+ * This class is not thread-safe.
+ */
+class KVRecencyPolicy implements KVCachePolicy {
+
+    private final KVCacheList list = new KVCacheList();
+    private final boolean moveOnAccess;
+
+    /**
+     * @param moveOnAccess true for LRU, false for FIFO
+     */
+    KVRecencyPolicy(boolean moveOnAccess) {
+        this.moveOnAccess = moveOnAccess;
+    }
+
+    public void miss(String key) {
+    }
+
+    public void insert(CacheNode node) {
+        list.addLast(node);
+    }
+
+    public void touch(CacheNode node) {
+        if (moveOnAccess) {
+            list.moveToLast(node);
+        }
+    }
+
+    public boolean mark(CacheNode node) {
+        return false;
+    }
+
+    public void remove(CacheNode node) {
+        list.remove(node);
+    }
+
+    public CacheNode evict() {
+        return list.pollFirst();
+    }
+
+    public void clear() {
+        list.clear();
+    }
+}
@@ -0,0 +1,284 @@
+package com.company;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Binary key-value record shared by the log-structured engines.
+ * Layout: crc(4) codec(1) keyLen(3) valLen(4) key value
+ * The crc covers everything after itself; valLen == -1 marks a tombstone.
+ * codec is the id of the KVCodec the value is compressed with, 0 if it is stored as is
+ * (see KVCompression); records written before compression existed have 0 there.
+ * A record with an empty key, which no pair can have, is the header of a batch: its value
+ * is the number of records that follow and belong to the batch.
+ */
+final class KVRecord {
+
+    static final int HEADER_SIZE = 12;
+    static final int TOMBSTONE = -1;
+    static final int MAX_KEY_LENGTH = (1 << 24) - 1;
+
+    final String key;
+    final String value; // null for a tombstone
+    final int keyLength; // in bytes
+    final int valueLength; // stored bytes, 0 for a tombstone
+    final int codec; // 0 if the value is not compressed
+
+    private KVRecord(String key, String value, int keyLength, int valueLength, int codec) {
+        this.key = key;
+        this.value = value;
+        this.keyLength = keyLength;
+        this.valueLength = valueLength;
+        this.codec = codec;
+    }
+
+    boolean isTombstone() {
+        return value == null;
+    }
+
+    boolean isBatchHeader() {
+        return keyLength == 0;
+    }
+
+    /**
+     * @return number of records in the batch this header starts
+     */
+    int batchSize() {
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * @return encoded size of this record
+     */
+    int length() {
+        return HEADER_SIZE + keyLength + valueLength;
+    }
+
+    /**
+     * @return offset of the value relative to the start of the record
+     */
+    int valueOffset() {
+        return HEADER_SIZE + keyLength;
+    }
+
+    /**
+     * Encode a record without compressing its value.
+     * @param key given key
+     * @param value given value; null for a tombstone
+     * @return buffer ready to be written
+     */
+    static ByteBuffer encode(String key, String value) {
+        return encode(key, value, KVCompression.NONE);
+    }
+
+    /**
+     * Encode a record.
+     * @param key given key
+     * @param value given value; null for a tombstone
+     * @param compression compression of the value
+     * @return buffer ready to be written
+     */
+    static ByteBuffer encode(String key, String value, KVCompression compression) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key longer than " + MAX_KEY_LENGTH + " bytes");
+        }
+        byte[] valBytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        int codec = 0;
+        if (valBytes != null) {
+            byte[] compressed = compression.compress(valBytes);
+            if (compressed != null) {
+                valBytes = compressed;
+                codec = compression.codec.getId();
+            }
+        }
+        int valLen = valBytes == null ? TOMBSTONE : valBytes.length;
+        int recordLen = HEADER_SIZE + keyBytes.length + Math.max(valLen, 0);
+
+        ByteBuffer record = ByteBuffer.allocate(recordLen);
+        record.putInt(0);
+        record.putInt(codec << 24 | keyBytes.length);
+        record.putInt(valLen);
+        record.put(keyBytes);
+        if (valBytes != null) {
+            record.put(valBytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, recordLen - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Encode the header of a batch.
+     * @param size number of records in the batch
+     * @return buffer ready to be written
+     */
+    static ByteBuffer encodeBatchHeader(int size) {
+        return encode("", Integer.toString(size));
+    }
+
+    /**
+     * Read the next record from a stream.
+     * @param in stream positioned at the start of a record
+     * @param remaining number of bytes left in the stream
+     * @return the record; null at the end of the stream or if the record is torn or corrupted
+     * @throws IOException
+     */
+    static KVRecord read(DataInputStream in, long remaining) throws IOException {
+        if (remaining < HEADER_SIZE) {
+            return null;
+        }
+        int storedCrc = in.readInt();
+        int keyField = in.readInt();
+        int keyLen = keyField & MAX_KEY_LENGTH;
+        int valLen = in.readInt();
+        if (keyField < 0 || valLen < TOMBSTONE || HEADER_SIZE + (long) keyLen + Math.max(valLen, 0) > remaining) {
+            return null;
+        }
+        byte[] body = new byte[8 + keyLen + Math.max(valLen, 0)];
+        ByteBuffer.wrap(body).putInt(keyField).putInt(valLen);
+        try {
+            in.readFully(body, 8, body.length - 8);
+        } catch (EOFException e) {
+            return null;
+        }
+        try {
+            return decode(storedCrc, body, 0, body.length);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Read the next record from a buffer and advance its position past it.
+     * @param buffer buffer positioned at the start of a record
+     * @return the record; null if the buffer is exhausted or the record is torn or corrupted
+     * @throws UncheckedIOException if the record is intact but its value cannot be decompressed
+     */
+    static KVRecord read(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        int storedCrc = buffer.getInt(start);
+        int keyField = buffer.getInt(start + 4);
+        int keyLen = keyField & MAX_KEY_LENGTH;
+        int valLen = buffer.getInt(start + 8);
+        if (keyField < 0 || valLen < TOMBSTONE || HEADER_SIZE + (long) keyLen + Math.max(valLen, 0) > buffer.remaining()) {
+            return null;
+        }
+        int bodyLen = 8 + keyLen + Math.max(valLen, 0);
+        byte[] body;
+        int offset;
+        if (buffer.hasArray()) {
+            body = buffer.array();
+            offset = buffer.arrayOffset() + start + 4;
+        } else {
+            body = new byte[bodyLen];
+            offset = 0;
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(start + 4);
+            dup.get(body);
+        }
+        KVRecord record = decode(storedCrc, body, offset, bodyLen);
+        if (record != null) {
+            buffer.position(start + record.length());
+        }
+        return record;
+    }
+
+    /**
+     * Length of the record at the given position, read from its header only, so that
+     * records can be skipped without decoding or checking them.
+     * @param buffer buffer holding the record
+     * @param position absolute position of the record
+     * @return encoded length of the record; -1 if the header is invalid or the record is cut short
+     */
+    static int peekLength(ByteBuffer buffer, int position) {
+        if (buffer.limit() - position < HEADER_SIZE) {
+            return -1;
+        }
+        int keyField = buffer.getInt(position + 4);
+        int keyLen = keyField & MAX_KEY_LENGTH;
+        int valLen = buffer.getInt(position + 8);
+        long length = HEADER_SIZE + (long) keyLen + Math.max(valLen, 0);
+        if (keyField < 0 || valLen < TOMBSTONE || length > buffer.limit() - position) {
+            return -1;
+        }
+        return (int) length;
+    }
+
+    /**
+     * @param buffer buffer holding the record
+     * @param position absolute position of a record whose length was checked by peekLength
+     * @return view of the raw key bytes of the record, to compare keys without decoding them
+     */
+    static ByteBuffer peekKey(ByteBuffer buffer, int position) {
+        ByteBuffer key = buffer.duplicate();
+        key.limit(position + HEADER_SIZE + (buffer.getInt(position + 4) & MAX_KEY_LENGTH));
+        key.position(position + HEADER_SIZE);
+        return key;
+    }
+
+    /**
+     * @param encoded record built by encode
+     * @return offset of the value relative to the start of the record
+     */
+    static int valueOffset(ByteBuffer encoded) {
+        return HEADER_SIZE + (encoded.getInt(4) & MAX_KEY_LENGTH);
+    }
+
+    /**
+     * @param encoded record built by encode
+     * @return id of the codec its value is compressed with, 0 if none
+     */
+    static int codecOf(ByteBuffer encoded) {
+        return encoded.getInt(4) >>> 24;
+    }
+
+    /**
+     * Decode a value stored by encode, as read directly from a file by offset.
+     * @param stored stored value bytes
+     * @param codec id of the codec it is compressed with, 0 if none
+     * @return the value
+     * @throws IOException if it cannot be decompressed
+     */
+    static String decodeValue(byte[] stored, int codec) throws IOException {
+        byte[] value = codec == 0 ? stored : KVCompression.decompress(codec, stored, 0, stored.length);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static KVRecord decode(int storedCrc, byte[] body, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(body, offset, length);
+        if ((int) crc.getValue() != storedCrc) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(body, offset, 8);
+        int keyField = header.getInt();
+        int keyLen = keyField & MAX_KEY_LENGTH;
+        int codec = keyField >>> 24;
+        int valLen = header.getInt();
+        String key = new String(body, offset + 8, keyLen, StandardCharsets.UTF_8);
+        String value = null;
+        if (valLen != TOMBSTONE && codec == 0) {
+            value = new String(body, offset + 8 + keyLen, valLen, StandardCharsets.UTF_8);
+        } else if (valLen != TOMBSTONE) {
+            try {
+                // the record is intact, so a failure here is not a torn write and must not be taken for one
+                byte[] raw = KVCompression.decompress(codec, body, offset + 8 + keyLen, valLen);
+                value = new String(raw, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return new KVRecord(key, value, keyLen, Math.max(valLen, 0), codec);
+    }
+}
@@ -0,0 +1,363 @@
+package com.company;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable file of KVRecords sorted by key, used by KVLSMEngine.
+ * Layout: records | index | footer
+ * index: count(4), then keyLen(4) key offset(8) for every INDEX_INTERVAL-th record, then maxKeyLen(4) maxKey,
+ * then a KVBloomFilter over every key of the table
+ * footer: indexOffset(8) recordCount(8) magic(4)
+ * Only the sparse index and the filter are kept in memory; lookups that pass the filter read a single
+ * block of INDEX_INTERVAL records, either through the channel or from a memory mapping of the whole file.
+ * Tables written before filters existed have none on disk, theirs is rebuilt when they are opened.
+ */
+class KVSSTable implements Closeable {
+
+    private static final int INDEX_INTERVAL = 16;
+    private static final int FOOTER_SIZE = 20;
+    private static final int MAGIC = 0x4B565354; // "KVST"
+
+    final long id;
+    final File file;
+    final long size;
+    final String minKey;
+    final String maxKey;
+
+    private final FileChannel channel;
+    private final KVMappedFile mapping; // null unless the table is read through a memory mapping
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+    private final long indexOffset;
+    private final KVBloomFilter filter;
+
+    // number of versions of the LSM tree that contain this table
+    private final AtomicInteger refs = new AtomicInteger();
+    private volatile boolean obsolete = false;
+
+    private KVSSTable(long id, File file, FileChannel channel, KVMappedFile mapping, String[] indexKeys,
+                      long[] indexOffsets, long indexOffset, String maxKey, KVBloomFilter filter) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.channel = channel;
+        this.mapping = mapping;
+        this.size = channel.size();
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.indexOffset = indexOffset;
+        this.minKey = indexKeys[0];
+        this.maxKey = maxKey;
+        this.filter = filter;
+    }
+
+    /**
+     * Write sorted entries into a new table, stopping once the table reaches targetSize.
+     * Entries with a null value are written as tombstones.
+     * @param file file to create
+     * @param id id of the table
+     * @param entries entries sorted by key; only the written ones are consumed
+     * @param targetSize size after which no more entries are taken
+     * @param compression compression of the values
+     * @param memoryMapped whether the new table is read through a memory mapping
+     * @return the new table; null if entries is empty
+     * @throws IOException
+     */
+    static KVSSTable write(File file, long id, Iterator<Map.Entry<String, String>> entries, long targetSize,
+                           KVCompression compression, boolean memoryMapped) throws IOException {
+        if (!entries.hasNext()) {
+            return null;
+        }
+        FileOutputStream fos = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 << 10));
+        List<String> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        long offset = 0;
+        long count = 0;
+        String lastKey = null;
+        long[] hashes = new long[1024];
+        try {
+            while (entries.hasNext() && offset < targetSize) {
+                Map.Entry<String, String> entry = entries.next();
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(entry.getKey());
+                    indexOffsets.add(offset);
+                }
+                ByteBuffer record = KVRecord.encode(entry.getKey(), entry.getValue(), compression);
+                out.write(record.array(), 0, record.limit());
+                offset += record.limit();
+                lastKey = entry.getKey();
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                }
+                hashes[(int) count] = KVBloomFilter.hash(entry.getKey());
+                ++count;
+            }
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); ++i) {
+                byte[] key = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(indexOffsets.get(i));
+            }
+            byte[] max = lastKey.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(max.length);
+            out.write(max);
+            KVBloomFilter filter = KVBloomFilter.build(hashes, (int) count);
+            ByteBuffer encoded = ByteBuffer.allocate(filter.length());
+            filter.writeTo(encoded);
+            out.write(encoded.array());
+            out.writeLong(offset);
+            out.writeLong(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return open(file, id, memoryMapped);
+    }
+
+    /**
+     * Open an existing table and load its sparse index.
+     * @param file table file
+     * @param id id of the table
+     * @param memoryMapped whether the table is read through a memory mapping
+     * @return the table
+     * @throws IOException if the file is not a complete table
+     */
+    static KVSSTable open(File file, long id, boolean memoryMapped) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize < FOOTER_SIZE) {
+                throw new IOException("Corrupted table " + file);
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(channel, footer, fileSize - FOOTER_SIZE);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            footer.getLong(); // record count
+            if (footer.getInt() != MAGIC || indexOffset < 0 || indexOffset > fileSize - FOOTER_SIZE) {
+                throw new IOException("Corrupted table " + file);
+            }
+            ByteBuffer index = ByteBuffer.allocate((int) (fileSize - FOOTER_SIZE - indexOffset));
+            readFully(channel, index, indexOffset);
+            index.flip();
+            int count = index.getInt();
+            String[] keys = new String[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; ++i) {
+                keys[i] = readString(index);
+                offsets[i] = index.getLong();
+            }
+            String maxKey = readString(index);
+            KVBloomFilter filter = KVBloomFilter.readFrom(index);
+            if (filter == null) {
+                filter = rebuildFilter(channel, indexOffset);
+            }
+            KVMappedFile mapping = memoryMapped ? new KVMappedFile(channel) : null;
+            return new KVSSTable(id, file, channel, mapping, keys, offsets, indexOffset, maxKey, filter);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Corrupted table " + file, e);
+        }
+    }
+
+    /**
+     * Look up a key.
+     * @param key given key
+     * @return the entry with a null value for a tombstone; null if the table does not contain the key
+     * @throws IOException
+     */
+    Map.Entry<String, String> get(String key) throws IOException {
+        if (key.compareTo(minKey) < 0 || key.compareTo(maxKey) > 0 || !filter.mightContain(key)) {
+            return null;
+        }
+        ByteBuffer block = readBlock(floorBlock(key));
+        KVRecord record;
+        try {
+            while ((record = KVRecord.read(block)) != null) {
+                int cmp = record.key.compareTo(key);
+                if (cmp == 0) {
+                    return new AbstractMap.SimpleImmutableEntry<>(record.key, record.value);
+                } else if (cmp > 0) {
+                    break;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return null;
+    }
+
+    /**
+     * @return true if some key of this table may fall in [fromInclusive, toExclusive)
+     */
+    boolean overlaps(String fromInclusive, String toExclusive) {
+        return (toExclusive == null || minKey.compareTo(toExclusive) < 0)
+                && (fromInclusive == null || maxKey.compareTo(fromInclusive) >= 0);
+    }
+
+    /**
+     * Iterate entries in [fromInclusive, toExclusive) in key order, reading one block at a time.
+     * Entries with a null value are tombstones.
+     * @param fromInclusive null for no lower bound
+     * @param toExclusive null for no upper bound
+     * @return iterator over the entries
+     */
+    Iterator<Map.Entry<String, String>> iterator(final String fromInclusive, final String toExclusive) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private int block = fromInclusive == null ? 0 : floorBlock(fromInclusive);
+            private ByteBuffer buffer;
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (true) {
+                    if (buffer == null || !buffer.hasRemaining()) {
+                        if (block >= indexOffsets.length) {
+                            return null;
+                        }
+                        try {
+                            buffer = readBlock(block++);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    KVRecord record = KVRecord.read(buffer);
+                    if (record == null) {
+                        throw new UncheckedIOException(new IOException("Corrupted table " + file));
+                    }
+                    if (toExclusive != null && record.key.compareTo(toExclusive) >= 0) {
+                        block = indexOffsets.length;
+                        buffer = null;
+                        return null;
+                    }
+                    if (fromInclusive == null || record.key.compareTo(fromInclusive) >= 0) {
+                        return new AbstractMap.SimpleImmutableEntry<>(record.key, record.value);
+                    }
+                }
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> entry = next;
+                next = advance();
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Register one more version of the tree that contains this table
+     */
+    void retain() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Drop a reference; the file is closed when the last version lets go of it,
+     * and deleted as well if a compaction made it obsolete.
+     */
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                close();
+            } catch (IOException e) {
+                System.out.println(e.getLocalizedMessage());
+            }
+            if (obsolete && !file.delete()) {
+                // TODO: logging
+                System.out.println("Failed to delete " + file);
+            }
+        }
+    }
+
+    void markObsolete() {
+        obsolete = true;
+    }
+
+    /**
+     * Only called once no version references the table, so no read can be in flight
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (mapping != null) {
+            mapping.close();
+        }
+        channel.close();
+    }
+
+    private int floorBlock(String key) {
+        int i = Arrays.binarySearch(indexKeys, key);
+        if (i < 0) {
+            i = -i - 2; // insertion point - 1
+        }
+        return Math.max(i, 0);
+    }
+
+    private ByteBuffer readBlock(int block) throws IOException {
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : indexOffset;
+        if (mapping != null) {
+            return mapping.slice(start, (int) (end - start));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        readFully(channel, buffer, start);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Build the filter of a table that has none on disk, by reading all its records.
+     * @param channel channel of the table, not shared yet
+     * @param indexOffset end of the records
+     * @return the filter
+     * @throws IOException
+     */
+    private static KVBloomFilter rebuildFilter(FileChannel channel, long indexOffset) throws IOException {
+        // the stream is not closed, the channel stays open
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 64 << 10));
+        long[] hashes = new long[1024];
+        int count = 0;
+        long offset = 0;
+        KVRecord record;
+        while (offset < indexOffset && (record = KVRecord.read(in, indexOffset - offset)) != null) {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            hashes[count++] = KVBloomFilter.hash(record.key);
+            offset += record.length();
+        }
+        if (offset != indexOffset) {
+            throw new IOException("Corrupted records");
+        }
+        return KVBloomFilter.build(hashes, count);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of table");
+            }
+        }
+    }
+}
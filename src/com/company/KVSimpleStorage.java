@@ -1,29 +1,52 @@
 package com.company;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.*;
 import java.nio.file.InvalidPathException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by tianqiliu on 2018-01-22.
+ *
+ * Locking: every MD5 bucket maps to one of LOCK_STRIPES read-write locks. Single-key reads
+ * share the lock of their stripe and writes own it, so operations on unrelated buckets never
+ * wait for each other. Operations on single keys and batches also share storeLock, which
+ * clear/close and range deletes take exclusively. Locks are always taken storeLock first,
+ * then stripes in index order.
  */
-public class KVSimpleStorage {
-    protected ReentrantLock lock = new ReentrantLock();
-    protected int numOfReader = 0;
-    protected Condition noReaderCondition = lock.newCondition();
+public class KVSimpleStorage implements Closeable {
+    protected static final int LOCK_STRIPES = 64;
+    private static final int REAP_BATCH_SIZE = 1024;
+
+    protected final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    protected final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[LOCK_STRIPES];
+    {
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
 
     protected String dbPath = "./db/";
-    protected final String keyIndicator = "k:";
-    protected final String valIndicator = "v:";
-    protected final int afterIndicator = 2;
+    protected IKVStorageEngine engine;
+    protected KVStorageOptions.Durability durability;
+    protected KVExpiry expiry;
+    private ScheduledExecutorService flusher; // only used by Durability.Periodic
+    private ScheduledExecutorService reaper;
 
     public KVSimpleStorage(String dbPath) throws InvalidPathException, IOException {
+        this(dbPath, new KVStorageOptions());
+    }
+
+    public KVSimpleStorage(String dbPath, IKVServer.StorageFormat format) throws InvalidPathException, IOException {
+        this(dbPath, new KVStorageOptions().setFormat(format));
+    }
+
+    public KVSimpleStorage(String dbPath, KVStorageOptions options) throws InvalidPathException, IOException {
 
         if (dbPath == null || dbPath.isEmpty()) {
             throw new InvalidPathException(dbPath, "Database path cannot be empty");
@@ -38,6 +61,7 @@ public class KVSimpleStorage {
             }
         }
         this.dbPath = dbPath;
+        open(options);
     }
 
     public KVSimpleStorage() throws IOException {
@@ -47,6 +71,74 @@ public class KVSimpleStorage {
                 throw new InvalidPathException(dbPath, "Database creation failed");
             }
         }
+        open(new KVStorageOptions());
+    }
+
+    /**
+     * Open the engine on top of dbPath, start the reaper of expired keys and the background
+     * flusher if needed
+     * @param options storage options
+     * @throws IOException
+     */
+    private void open(KVStorageOptions options) throws IOException {
+        this.engine = openEngine(options);
+        this.expiry = new KVExpiry(dbPath);
+        this.durability = options.getDurability();
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "storage-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    reapExpired();
+                } catch (IOException e) {
+                    // TODO: logging
+                    System.out.println("Reaping expired keys failed: " + e.getLocalizedMessage());
+                }
+            }
+        }, KVExpiry.TICK_MILLIS, KVExpiry.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        if (durability == KVStorageOptions.Durability.Periodic) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "storage-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        engine.sync();
+                        expiry.sync();
+                    } catch (IOException e) {
+                        // TODO: logging
+                        System.out.println("Background sync failed: " + e.getLocalizedMessage());
+                    }
+                }
+            }, options.getSyncIntervalMillis(), options.getSyncIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Create the engine for the given options on top of dbPath
+     * @param options storage options
+     * @return storage engine
+     * @throws IOException
+     */
+    private IKVStorageEngine openEngine(KVStorageOptions options) throws IOException {
+        switch (options.getFormat()) {
+            case Log:
+                return new KVLogEngine(dbPath, options);
+            case LSM:
+                return new KVLSMEngine(dbPath, options);
+            case Bucket:
+            default:
+                return new KVBucketEngine(dbPath, options);
+        }
     }
 
     /**
@@ -57,47 +149,50 @@ public class KVSimpleStorage {
      * @throws IOException
      */
     public KVStorageResult putKV(String key, String value) throws IOException {
-        if (key == null || key.isEmpty() || value == null || value.isEmpty()) {
-            throw new IOException("invalid arguments key - " + key + " value - " + value);
+        return putKV(key, value, 0);
+    }
+
+    /**
+     * Create/update the given key-pair on disk, to expire once ttlMillis have passed.
+     * An expired pair is hidden right away and deleted later by the reaper.
+     * @param key given key
+     * @param value value associated with key
+     * @param ttlMillis time to live in milliseconds; 0 for a pair that never expires
+     * @return status of result
+     * @throws IOException
+     */
+    public KVStorageResult putKV(String key, String value, long ttlMillis) throws IOException {
+        if (key == null || key.isEmpty() || value == null || value.isEmpty() || ttlMillis < 0) {
+            throw new IOException("invalid arguments key - " + key + " value - " + value + " ttl - " + ttlMillis);
         }
         KVStorageResult result = new KVStorageResult();
-        lock.lock();
+        Lock stripeLock = stripe(key).writeLock();
+        storeLock.readLock().lock();
+        stripeLock.lock();
         try {
-            while (numOfReader > 0) {
-                try {
-                    noReaderCondition.await();
-                } catch (InterruptedException e) {
-                    // TODO: log
-                }
-            }
-            File file = new File(getFilePath(key));
+            boolean expired = expiry.isExpired(key);
             if (value.equals("null")) {
-                if (deleteFromStorage(key)) {
+                if (deleteFromStorage(key) && !expired) {
                     result.setResult(KVStorageResult.ResultType.DELETE_SUCCESS);
                 } else {
                     result.setResult(KVStorageResult.ResultType.DELETE_ERROR);
                 }
-            } else if (file.exists()) {
-                if (updatePair(file, key, value)) {
-                    result.setResult(KVStorageResult.ResultType.PUT_UPDATE_SUCCESS);
-                } else {
-                    result.setResult(KVStorageResult.ResultType.PUT_UPDATE_ERROR);
-                }
             } else {
-                try {
-                    createPair(file, key, value);
-                    result.setResult(KVStorageResult.ResultType.PUT_SUCCESS);
-                } catch (IOException ioe) {
-                    result.setResult(KVStorageResult.ResultType.PUT_ERROR);
+                KVStorageResult.ResultType put = engine.put(key, value);
+                if (written(put)) {
+                    // after the write, as a failed write leaves the old pair with its deadline
+                    expiry.set(key, ttlMillis);
                 }
-
+                result.setResult(created(put, expired));
             }
         } catch (IOException ioe) {
             System.out.println(ioe.getLocalizedMessage());
             throw ioe;
         } finally {
-            lock.unlock();
+            stripeLock.unlock();
+            storeLock.readLock().unlock();
         }
+        syncStorage();
         return result;
     }
 
@@ -112,32 +207,24 @@ public class KVSimpleStorage {
             throw new IOException("invalid key " + key);
         }
         KVStorageResult result = new KVStorageResult(KVStorageResult.ResultType.GET_ERROR);
-        lock.lock();
-        ++numOfReader;
-        lock.unlock();
-
+        if (expiry.isExpired(key)) {
+            return result;
+        }
+        Lock stripeLock = stripe(key).readLock();
+        storeLock.readLock().lock();
+        stripeLock.lock();
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(getFilePath(key)));
-            String str;
-            while ((str = reader.readLine()) != null) {
-                if (str.substring(afterIndicator).equals(key)) {
-                    result.setResult(KVStorageResult.ResultType.GET_SUCCESS);
-                    result.setValue(reader.readLine().substring(afterIndicator));
-                    break;
-                }
-                reader.readLine();
+            String value = engine.get(key);
+            if (value != null) {
+                result.setResult(KVStorageResult.ResultType.GET_SUCCESS);
+                result.setValue(value);
             }
-            reader.close();
         } catch (IOException e) {
             // TODO: logging
             System.out.println(e.getLocalizedMessage());
         } finally {
-            lock.lock();
-            --numOfReader;
-            if (numOfReader == 0) {
-                noReaderCondition.signal();
-            }
-            lock.unlock();
+            stripeLock.unlock();
+            storeLock.readLock().unlock();
         }
 
         return result;
@@ -158,34 +245,36 @@ public class KVSimpleStorage {
      * @return
      */
     public boolean inStorage(String key) {
-        if (key == null || key.isEmpty()) {
+        if (key == null || key.isEmpty() || expiry.isExpired(key)) {
             return false;
         }
+        Lock stripeLock = stripe(key).readLock();
+        storeLock.readLock().lock();
+        stripeLock.lock();
         try {
-            return getKV(key).getValue() != null;
+            return engine.contains(key);
         } catch (IOException e) {
+            // TODO: logging
+            System.out.println(e.getLocalizedMessage());
             return false;
+        } finally {
+            stripeLock.unlock();
+            storeLock.readLock().unlock();
         }
-
     }
 
     /**
      * Clear storage
      */
     public void clearStorage() {
-        lock.lock();
-        File dir = new File(dbPath);
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file: files) {
-                if (!file.delete()) {
-                    // TODO: logging
-                    System.out.println("Failed to delete " + file);
-                }
-            }
+        // memory mapped files are unmapped, so no reader may be running
+        storeLock.writeLock().lock();
+        try {
+            engine.clear();
+            clearExpiry();
+        } finally {
+            storeLock.writeLock().unlock();
         }
-
-        lock.unlock();
     }
 
     /**
@@ -199,179 +288,151 @@ public class KVSimpleStorage {
         if (lowerExclusive == null || upperInclusive == null || lowerExclusive.compareTo(upperInclusive) == 0) {
             return null;
         }
-        lowerExclusive += ".txt";
-        upperInclusive += ".txt";
-        lock.lock();
-        File dir = new File(dbPath);
-        File[] files = dir.listFiles();
-        HashMap<String, String> kvPairs = new HashMap<>();
+        HashMap<String, String> kvPairs;
+        // a consistent view of the range, while single-key reads keep going
+        storeLock.readLock().lock();
+        List<Lock> locks = lockStripes(allStripes(), false);
         try {
-            if (files != null) { // if db is not empty
-                BufferedReader reader;
-                String fileName, key, val;
-                if (lowerExclusive.compareTo(upperInclusive) > 0) {
-                    // corner case: wrap around
-                    for (File file: files) {
-                        fileName = file.getName();
-
-                        if (lowerExclusive.compareTo(fileName) < 0 || fileName.compareTo(upperInclusive) <= 0) {
-                            reader = new BufferedReader(new FileReader(file));
-                            while ((key = reader.readLine()) != null) {
-                                key = key.substring(afterIndicator);
-                                val = reader.readLine().substring(afterIndicator);
-                                kvPairs.put(key, val);
-                            }
-                            reader.close();
-                        }
-                    }
-                } else {
-                    for (File file: files) {
-                        fileName = file.getName();
-
-                        if (lowerExclusive.compareTo(fileName) < 0 && fileName.compareTo(upperInclusive) <= 0) {
-                            reader = new BufferedReader(new FileReader(file));
-                            while ((key = reader.readLine()) != null) {
-                                key = key.substring(afterIndicator);
-                                val = reader.readLine().substring(afterIndicator);
-                                kvPairs.put(key, val);
-                            }
-                            reader.close();
-                        }
-                    }
+            kvPairs = engine.getInRange(lowerExclusive, upperInclusive);
+        } finally {
+            unlock(locks);
+            storeLock.readLock().unlock();
+        }
+        if (expiry.size() > 0) {
+            Iterator<String> keys = kvPairs.keySet().iterator();
+            while (keys.hasNext()) {
+                if (expiry.isExpired(keys.next())) {
+                    keys.remove();
                 }
             }
-
-        } finally {
-            lock.unlock();
         }
         return kvPairs.size() == 0 ? null : kvPairs;
 
     }
-//    public HashMap<String, String> getKVInRange(String lowerExclusive, String upperInclusive) throws IOException {
-//        if (lowerExclusive == null || upperInclusive == null || lowerExclusive.compareTo(upperInclusive) == 0) {
-//            return null;
-//        }
-//        lowerExclusive += ".txt";
-//        upperInclusive += ".txt";
-//        if (lowerExclusive.compareTo(upperInclusive) > 0) {
-//            // corner case: wrap around
-//            lock.lock();
-//
-//            File dir = new File(dbPath);
-//            File[] files = dir.listFiles();
-//            HashMap<String, String> kvPairs = new HashMap<>();
-//            try {
-//                if (files != null) { // if db is not empty
-//                    BufferedReader reader;
-//                    String fileName, key, val;
-//
-//                    for (File file: files) {
-//                        fileName = file.getName();
-//
-//                        if (lowerExclusive.compareTo(fileName) < 0 || fileName.compareTo(upperInclusive) <= 0) {
-//                            reader = new BufferedReader(new FileReader(file));
-//                            while ((key = reader.readLine()) != null) {
-//                                key = key.substring(afterIndicator);
-//                                val = reader.readLine().substring(afterIndicator);
-//                                kvPairs.put(key, val);
-//                            }
-//                            reader.close();
-//                        }
-//                    }
-//                }
-//            } finally {
-//                lock.unlock();
-//            }
-//            return kvPairs;
-//
-//        } else {
-//            lock.lock();
-//
-//            File dir = new File(dbPath);
-//            File[] files = dir.listFiles();
-//            HashMap<String, String> kvPairs = new HashMap<>();
-//            try {
-//                if (files != null) { // if db is not empty
-//                    BufferedReader reader;
-//                    String fileName, key, val;
-//
-//                    for (File file: files) {
-//                        fileName = file.getName();
-//
-//                        if (lowerExclusive.compareTo(fileName) < 0 && fileName.compareTo(upperInclusive) <= 0) {
-//                            reader = new BufferedReader(new FileReader(file));
-//                            while ((key = reader.readLine()) != null) {
-//                                key = key.substring(afterIndicator);
-//                                val = reader.readLine().substring(afterIndicator);
-//                                kvPairs.put(key, val);
-//                            }
-//                            reader.close();
-//                        }
-//                    }
-//                }
-//            } finally {
-//                lock.unlock();
-//            }
-//
-//            return kvPairs.size() == 0 ? null : kvPairs;
-//        }
-//
-//    }
-
-    /**
-     * Store all the given KV pairs to disk
+
+    /**
+     * Open a cursor over the kv pairs in the given range, in hash order starting after lowerExclusive.
+     * Unlike getKVInRange, pairs are read as the cursor advances, and writers are only held up
+     * while the snapshot the cursor reads from is taken; it does not see later writes.
+     * @param lowerExclusive
+     * @param upperInclusive
+     * @return cursor, which the caller must close; null if arguments are invalid
+     * @throws IOException
+     */
+    public IKVCursor getKVCursor(String lowerExclusive, String upperInclusive) throws IOException {
+        if (lowerExclusive == null || upperInclusive == null || lowerExclusive.compareTo(upperInclusive) == 0) {
+            return null;
+        }
+        storeLock.readLock().lock();
+        List<Lock> locks = lockStripes(allStripes(), false);
+        try {
+            return new LiveCursor(engine.openCursor(lowerExclusive, upperInclusive));
+        } finally {
+            unlock(locks);
+            storeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store all the given KV pairs to disk as one atomic batch.
+     * A "null" value deletes the key; deleting a missing key does nothing.
      * @param kvPairs
-     * @return true if all pairs are put successfully, false otherwise
+     * @return true if all pairs are put successfully, false if none of them is
      * @throws IOException
      */
     public boolean putKV(Map<String, String> kvPairs) throws IOException {
         if (kvPairs == null || kvPairs.isEmpty()) {
             return false;
         }
-        boolean success = true;
-        lock.lock();
-        try {
-            while (numOfReader > 0) {
-                try {
-                    noReaderCondition.await();
-                } catch (InterruptedException e) {
-                    // TODO: log
-                }
+        Map<String, String> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, String> kvPair: kvPairs.entrySet()) {
+            String key = kvPair.getKey();
+            String value = kvPair.getValue();
+            if (key == null || key.isEmpty() || value == null || value.isEmpty()) {
+                throw new IOException("invalid arguments key - " + key + " value - " + value);
             }
-            String key, value;
-            File file;
-            for (Map.Entry<String, String> kvPair: kvPairs.entrySet()) {
-                key = kvPair.getKey();
-                value = kvPair.getValue();
-                file = new File(getFilePath(key));
-                if (value.equals("null")) {
-                    if (!deleteFromStorage(key)) {
-                        success = false;
-                        break;
-                    }
-                } else if (file.exists()) {
-                    if (!updatePair(file, key, value)) {
-                        success = false;
-                        break;
-                    }
-                } else {
-                    try {
-                        createPair(file, key, value);
-                    } catch (IOException ioe) {
-                        success = false;
-                        break;
-                    }
+            batch.put(key, value.equals("null") ? null : value);
+        }
+        boolean success;
+        storeLock.readLock().lock();
+        List<Lock> locks = lockStripes(stripesOf(batch.keySet()), true);
+        try {
+            success = writeBatch(batch);
+        } catch (IOException ioe) {
+            System.out.println(ioe.getLocalizedMessage());
+            throw ioe;
+        } finally {
+            unlock(locks);
+            storeLock.readLock().unlock();
+        }
+        syncStorage();
+        return success;
+    }
 
-                }
+    /**
+     * Get the values of several keys, reading each file at most once.
+     * @param keys given keys
+     * @return result of each distinct key, in the order of keys
+     * @throws IOException if a key is invalid
+     */
+    public Map<String, KVStorageResult> getKV(Collection<String> keys) throws IOException {
+        Set<String> batchKeys = validKeys(keys);
+        Set<String> liveKeys = new HashSet<>();
+        for (String key: batchKeys) {
+            if (!expiry.isExpired(key)) {
+                liveKeys.add(key);
             }
+        }
+        Map<String, String> values = Collections.emptyMap();
+        storeLock.readLock().lock();
+        List<Lock> locks = lockStripes(stripesOf(liveKeys), false);
+        try {
+            values = getBatch(liveKeys);
+        } catch (IOException e) {
+            // TODO: logging
+            System.out.println(e.getLocalizedMessage());
+        } finally {
+            unlock(locks);
+            storeLock.readLock().unlock();
+        }
+        Map<String, KVStorageResult> results = new LinkedHashMap<>();
+        for (String key: batchKeys) {
+            String value = values.get(key);
+            results.put(key, value != null
+                    ? new KVStorageResult(KVStorageResult.ResultType.GET_SUCCESS, value)
+                    : new KVStorageResult(KVStorageResult.ResultType.GET_ERROR));
+        }
+        return results;
+    }
 
+    /**
+     * Delete several keys as one atomic batch, reading each file at most once to find the stored ones.
+     * @param keys given keys
+     * @return DELETE_SUCCESS for each distinct key that was stored, DELETE_ERROR for the others,
+     * in the order of keys
+     * @throws IOException
+     */
+    public Map<String, KVStorageResult> deleteKV(Collection<String> keys) throws IOException {
+        Set<String> batchKeys = validKeys(keys);
+        Set<String> deleted;
+        storeLock.readLock().lock();
+        List<Lock> locks = lockStripes(stripesOf(batchKeys), true);
+        try {
+            deleted = deleteBatch(batchKeys);
         } catch (IOException ioe) {
             System.out.println(ioe.getLocalizedMessage());
             throw ioe;
         } finally {
-            lock.unlock();
+            unlock(locks);
+            storeLock.readLock().unlock();
         }
-        return success;
+        syncStorage();
+        Map<String, KVStorageResult> results = new LinkedHashMap<>();
+        for (String key: batchKeys) {
+            results.put(key, new KVStorageResult(deleted != null && deleted.contains(key)
+                    ? KVStorageResult.ResultType.DELETE_SUCCESS : KVStorageResult.ResultType.DELETE_ERROR));
+        }
+        return results;
     }
 
     /**
@@ -383,40 +444,44 @@ public class KVSimpleStorage {
         if (lowerExclusive == null || upperInclusive == null || lowerExclusive.compareTo(upperInclusive) == 0) {
             return;
         }
-        lowerExclusive += ".txt";
-        upperInclusive += ".txt";
 
-        lock.lock();
-        File dir = new File(dbPath);
-        File[] files = dir.listFiles();
-        if (files != null) {
-            String fileName;
-            if (lowerExclusive.compareTo(upperInclusive) > 0) {
-                // wrap around case
-                for (File file: files) {
-                    fileName = file.getName();
-
-                    if (lowerExclusive.compareTo(fileName) < 0 || fileName.compareTo(upperInclusive) <= 0 && !file.delete()) {
-                        // TODO: logging
-                        System.out.println("Failed to delete " + file);
-                    }
-
-                }
-            } else {
-                for (File file: files) {
-                    fileName = file.getName();
-
-                    if (lowerExclusive.compareTo(fileName) < 0 && fileName.compareTo(upperInclusive) <= 0 && !file.delete()) {
-                        // TODO: logging
-                        System.out.println("Failed to delete " + file);
-                    }
-
-                }
-            }
+        storeLock.writeLock().lock();
+        try {
+            engine.deleteInRange(lowerExclusive, upperInclusive);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+        try {
+            syncStorage();
+        } catch (IOException e) {
+            // TODO: logging
+        }
+    }
 
+    /**
+     * Run the compactions that are due now instead of waiting for the background compactor.
+     * Reads and writes keep going meanwhile; the compaction is rate limited as in the background.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        storeLock.readLock().lock();
+        try {
+            engine.compact();
+        } finally {
+            storeLock.readLock().unlock();
         }
+    }
 
-        lock.unlock();
+    /**
+     * @return progress and debt of background compaction
+     */
+    public KVCompactionStats getCompactionStats() {
+        storeLock.readLock().lock();
+        try {
+            return engine.getCompactionStats();
+        } finally {
+            storeLock.readLock().unlock();
+        }
     }
 
     /**
@@ -427,152 +492,312 @@ public class KVSimpleStorage {
     }
 
     /**
-     * Delete the record associated with the given key.
-     * Assumptions: key != null
-     * @param key key to delete
-     * @return true if delete is successful, false otherwise
+     * Release the files held by the storage engine, forcing pending writes first
+     * whatever the durability mode
      * @throws IOException
      */
-    protected boolean deleteFromStorage(String key) throws IOException {
-        boolean deleted = false;
-        File file = new File(getFilePath(key));
-        if (file.exists()) {
-            deleted = true;
-            File tempFile = new File(dbPath + "temp.txt");
-            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-
-            // read the old file into new file
-            // if the old file already contains the given key, omit it
-            int linesCopied = copyToFile(reader, writer, key);
-            writer.close();
-            reader.close();
-
-            if (!file.delete()) {
-                deleted = false;
-            }
-            if (linesCopied == 0) {
-                if (!tempFile.delete()) {
-                    deleted = false;
-                }
-            } else if (!tempFile.renameTo(file)) {
-                deleted = false;
+    public void close() throws IOException {
+        reaper.shutdown();
+        try {
+            reaper.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-
         }
-        return deleted;
+        storeLock.writeLock().lock();
+        try {
+            engine.close();
+            expiry.close();
+        } finally {
+            storeLock.writeLock().unlock();
+        }
     }
 
     /**
-     * Compute the file path given a key.
-     * Assumptions:
-     * 1. key != null
      * @param key given key
-     * @return file path
+     * @return the lock of the stripe the bucket of key belongs to
      */
-    protected String getFilePath(String key) {
-        StringBuilder sb = new StringBuilder(dbPath);
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            byte[] bytes = messageDigest.digest(key.getBytes());
-            sb.append(DatatypeConverter.printHexBinary(bytes));
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println(e.getLocalizedMessage());
-            // if MD5 fails
-            // let the hashcode of the key be the name of the file
-            sb.append(key.hashCode());
+    protected ReentrantReadWriteLock stripe(String key) {
+        return stripes[stripeIndex(key)];
+    }
+
+    private static int stripeIndex(String key) {
+        return (KVHashRange.hashOf(key).hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES;
+    }
+
+    /**
+     * @return indexes of the stripes of the given keys, in increasing order
+     */
+    protected static SortedSet<Integer> stripesOf(Collection<String> keys) {
+        SortedSet<Integer> indexes = new TreeSet<>();
+        for (String key: keys) {
+            indexes.add(stripeIndex(key));
         }
-        sb.append(".txt");
-        return sb.toString();
+        return indexes;
+    }
 
+    protected static SortedSet<Integer> allStripes() {
+        SortedSet<Integer> indexes = new TreeSet<>();
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            indexes.add(i);
+        }
+        return indexes;
     }
 
     /**
-     * Persist key-value pair to disk by writing them to the given file.
-     * @param file given file
-     * @param key given key
-     * @param value given value
+     * Lock the given stripes in increasing order, so that two callers cannot deadlock
+     * @param indexes stripe indexes in increasing order
+     * @param write whether to take the write locks rather than the read locks
+     * @return the locks taken, to be passed to unlock()
+     */
+    protected List<Lock> lockStripes(SortedSet<Integer> indexes, boolean write) {
+        List<Lock> locks = new ArrayList<>(indexes.size());
+        for (int i: indexes) {
+            Lock lock = write ? stripes[i].writeLock() : stripes[i].readLock();
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    protected static void unlock(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; --i) {
+            locks.get(i).unlock();
+        }
+    }
+
+    /**
+     * @return the distinct keys, in order; empty if keys is null
+     * @throws IOException if a key is invalid
+     */
+    private static Set<String> validKeys(Collection<String> keys) throws IOException {
+        Set<String> batchKeys = new LinkedHashSet<>();
+        if (keys == null) {
+            return batchKeys;
+        }
+        for (String key: keys) {
+            if (key == null || key.isEmpty()) {
+                throw new IOException("invalid key " + key);
+            }
+            batchKeys.add(key);
+        }
+        return batchKeys;
+    }
+
+    /**
+     * Get several keys from the engine. The caller holds the read locks of their stripes.
+     * @param keys distinct valid keys
+     * @return values of the stored keys
      * @throws IOException
      */
-    protected void createPair(File file, String key, String value) throws IOException {
-        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-        writer.write(keyIndicator + key);
-        writer.newLine();
-        writer.write(valIndicator + value);
-        writer.newLine();
-        writer.close();
+    protected Map<String, String> getBatch(Set<String> keys) throws IOException {
+        return engine.getAll(keys);
     }
 
     /**
-     * Update the key-value pair in the given file.
-     * If the pair does not exist, it creates the pair.
-     * The updated pair is put in the beiginning of the file
-     * for heuristic reason.
-     * Assumptions:
-     * 1. inputs are valid
-     * @param file given file
-     * @param key given key
-     * @param value new value associated with the key
-     * @return true if the update is successful, false otherwise
+     * Delete several keys from the engine. The caller holds the write locks of their stripes.
+     * @param keys distinct valid keys
+     * @return the keys that were stored and are now deleted, expired keys aside; null if the batch is not applied
+     * @throws IOException
+     */
+    protected Set<String> deleteBatch(Set<String> keys) throws IOException {
+        Set<String> stored = new HashSet<>(engine.getAll(keys).keySet());
+        if (stored.isEmpty()) {
+            return stored;
+        }
+        Map<String, String> batch = new HashMap<>();
+        for (String key: stored) {
+            batch.put(key, null);
+        }
+        Set<String> expired = new HashSet<>();
+        for (String key: stored) {
+            if (expiry.isExpired(key)) {
+                expired.add(key);
+            }
+        }
+        if (!writeBatch(batch)) {
+            return null;
+        }
+        stored.removeAll(expired);
+        return stored;
+    }
+
+    /**
+     * Apply a batch to the engine. The caller holds the write locks of the stripes of the batch.
+     * @param batch pairs to put; a null value deletes the key
+     * @return true if the batch is applied, false if none of it is
      * @throws IOException
      */
-    protected boolean updatePair(File file, String key, String value) throws IOException {
-        boolean updated = true;
-        File tempFile = new File(dbPath + "temp.txt");
-        BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
-        BufferedReader reader = new BufferedReader(new FileReader(file));
+    protected boolean writeBatch(Map<String, String> batch) throws IOException {
+        if (!applyBatch(batch)) {
+            return false;
+        }
+        // batches put pairs that never expire; the deadlines go once the engine has the batch
+        expiry.clear(batch.keySet());
+        return true;
+    }
 
-        // put the given pair at the beginning of the file
-        writer.write(keyIndicator + key);
-        writer.newLine();
-        writer.write(valIndicator + value);
-        writer.newLine();
+    /**
+     * Apply a batch to the engine, leaving the deadlines of its keys as they are.
+     * The caller holds the write locks of the stripes of the batch.
+     * @param batch pairs to put; a null value deletes the key
+     * @return true if the batch is applied, false if none of it is
+     * @throws IOException
+     */
+    protected boolean applyBatch(Map<String, String> batch) throws IOException {
+        return engine.writeBatch(batch);
+    }
 
-        // read the old file into new file
-        // if the old file already contains the given key, omit it
-        copyToFile(reader, writer, key);
+    /**
+     * Delete the keys whose deadline has passed, in batches, so that expiry costs one write
+     * per batch rather than per key. The space is reclaimed later by compaction.
+     * @throws IOException
+     */
+    protected void reapExpired() throws IOException {
+        List<String> due = expiry.due();
+        for (int from = 0; from < due.size(); from += REAP_BATCH_SIZE) {
+            List<String> keys = due.subList(from, Math.min(due.size(), from + REAP_BATCH_SIZE));
+            storeLock.readLock().lock();
+            List<Lock> locks = lockStripes(stripesOf(keys), true);
+            try {
+                Map<String, String> batch = new HashMap<>();
+                for (String key: keys) {
+                    // the key may have been put again since it came up
+                    if (expiry.isExpired(key)) {
+                        batch.put(key, null);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                boolean reaped = false;
+                try {
+                    if (!applyBatch(batch)) {
+                        throw new IOException("Failed to delete " + batch.size() + " expired keys");
+                    }
+                    // the tombstones are forced before the deadlines are dropped from the journal,
+                    // otherwise a crash could bring the keys back without their deadline
+                    engine.sync();
+                    expiry.clear(batch.keySet());
+                    expiry.sync();
+                    reaped = true;
+                } finally {
+                    if (!reaped) {
+                        // still hidden by their deadline, the keys of this batch which kept it and
+                        // the rest are tried at the next turn
+                        expiry.retry(due.subList(from, due.size()));
+                    }
+                }
+            } finally {
+                unlock(locks);
+                storeLock.readLock().unlock();
+            }
+        }
+    }
 
-        writer.close();
-        reader.close();
-        if (!file.delete()) {
-            updated = false;
+    /**
+     * Drop every deadline after the engine was cleared. The caller holds storeLock exclusively.
+     */
+    protected void clearExpiry() {
+        try {
+            expiry.clearAll();
+        } catch (IOException e) {
+            // TODO: logging
+            System.out.println(e.getLocalizedMessage());
         }
-        if (!tempFile.renameTo(file)) {
-            updated = false;
+    }
+
+    /**
+     * @param result result of a put, null if it threw
+     * @return true if the pair reached the engine
+     */
+    protected static boolean written(KVStorageResult.ResultType result) {
+        return result == KVStorageResult.ResultType.PUT_SUCCESS
+                || result == KVStorageResult.ResultType.PUT_UPDATE_SUCCESS;
+    }
+
+    /**
+     * @param result result of a put
+     * @param expired whether the key had expired before the put
+     * @return the result, as a creation if the key had expired
+     */
+    protected static KVStorageResult.ResultType created(KVStorageResult.ResultType result, boolean expired) {
+        if (expired && result == KVStorageResult.ResultType.PUT_UPDATE_SUCCESS) {
+            return KVStorageResult.ResultType.PUT_SUCCESS;
         }
-        return updated;
+        return result;
     }
 
     /**
-     * Copy the content from one file to another, omitting the data associated with the given key.
-     * @param reader reader for the origin file
-     * @param writer writer for the destination file
-     * @param keyToOmit key to be omitted
-     * @return number of lines copied
+     * With Durability.Sync, wait until the writes made so far are on stable storage.
+     * Called without holding the lock, so that writers which finished meanwhile are
+     * forced together with this one (group commit).
+     * The other modes leave forcing to the background flusher or to the OS.
      * @throws IOException
      */
-    protected int copyToFile(BufferedReader reader, BufferedWriter writer, String keyToOmit) throws IOException {
-        int linesCopied = 0;
-        String str;
-        while ((str = reader.readLine()) != null) {
-            if (str.substring(afterIndicator).equals(keyToOmit)) {
-                reader.readLine(); // skip the old value
-                break;
+    protected void syncStorage() throws IOException {
+        if (durability != KVStorageOptions.Durability.Sync) {
+            return;
+        }
+        try {
+            engine.sync();
+            expiry.sync();
+        } catch (IOException ioe) {
+            System.out.println(ioe.getLocalizedMessage());
+            throw ioe;
+        }
+    }
+
+    /**
+     * Delete the record associated with the given key.
+     * Assumptions: key != null
+     * @param key key to delete
+     * @return true if delete is successful, false otherwise
+     * @throws IOException
+     */
+    protected boolean deleteFromStorage(String key) throws IOException {
+        boolean deleted = engine.delete(key);
+        // a key the engine does not hold has nothing left to expire either
+        expiry.clear(Collections.singleton(key));
+        return deleted;
+    }
+
+    /**
+     * Cursor skipping the pairs which have expired
+     */
+    private class LiveCursor implements IKVCursor {
+        private final IKVCursor cursor;
+
+        LiveCursor(IKVCursor cursor) {
+            this.cursor = cursor;
+        }
+
+        public boolean next() throws IOException {
+            while (cursor.next()) {
+                if (!expiry.isExpired(cursor.getKey())) {
+                    return true;
+                }
             }
+            return false;
+        }
+
+        public String getKey() {
+            return cursor.getKey();
+        }
 
-            ++linesCopied;
-            writer.write(str);
-            writer.newLine();
-            writer.write(reader.readLine());
-            writer.newLine();
+        public String getValue() {
+            return cursor.getValue();
         }
-        while ((str = reader.readLine()) != null) {
-            ++linesCopied;
-            writer.write(str);
-            writer.newLine();
-            writer.write(reader.readLine());
-            writer.newLine();
+
+        public void close() throws IOException {
+            cursor.close();
         }
-        return linesCopied;
     }
 }
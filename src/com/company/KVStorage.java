@@ -2,76 +2,119 @@ package com.company;
 
 import java.io.*;
 import java.nio.file.InvalidPathException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by tianqiliu on 2018-01-18.
  */
 public class KVStorage extends KVSimpleStorage {
 
-    private KVCache cache;
+    // hits are answered without any lock; values are put under the stripe lock of their key,
+    // so that a value read from disk is still current when it is cached
+    private KVConcurrentCache cache;
+    // keys whose last lookup found nothing; a key is invalidated under its stripe write lock
+    private KVNegativeCache absentKeys;
+    // runs the asynchronous operations, created on first use
+    private ExecutorService ioExecutor; // guarded by ioExecutorLock
+    // bounds the operations in flight on virtual threads, null on platform threads
+    private Semaphore ioPermits; // guarded by ioExecutorLock
+    private boolean closed = false; // guarded by ioExecutorLock
+    private final ReentrantLock ioExecutorLock = new ReentrantLock();
+    private int asyncThreads;
+    private int asyncQueueCapacity;
+    private KVStorageOptions.ExecutionMode executionMode;
 
     public KVStorage(String dbPath, int cacheCapacity, IKVServer.CacheStrategy strategy) throws InvalidPathException, IOException {
         super(dbPath);
-        cache = new KVCache(cacheCapacity, strategy);
+        cache = new KVConcurrentCache(cacheCapacity, strategy);
+        configure(new KVStorageOptions());
+    }
+
+    public KVStorage(String dbPath, IKVServer.StorageFormat format, int cacheCapacity, IKVServer.CacheStrategy strategy) throws InvalidPathException, IOException {
+        super(dbPath, format);
+        cache = new KVConcurrentCache(cacheCapacity, strategy);
+        configure(new KVStorageOptions());
+    }
+
+    public KVStorage(String dbPath, KVStorageOptions options, int cacheCapacity, IKVServer.CacheStrategy strategy) throws InvalidPathException, IOException {
+        super(dbPath, options);
+        cache = new KVConcurrentCache(cacheCapacity, strategy, options.getCacheDecayInterval());
+        configure(options);
+    }
+
+    private void configure(KVStorageOptions options) {
+        absentKeys = new KVNegativeCache(options.getNegativeCacheCapacity());
+        asyncThreads = options.getAsyncThreads();
+        asyncQueueCapacity = options.getAsyncQueueCapacity();
+        executionMode = options.getExecutionMode();
     }
 
     public KVStorage(int cacheCapacity, IKVServer.CacheStrategy strategy) throws IOException {
         super();
-        cache = new KVCache(cacheCapacity, strategy);
+        cache = new KVConcurrentCache(cacheCapacity, strategy);
+        configure(new KVStorageOptions());
     }
 
     /**
-     * Create/update given key-value pair to disk and cache.
+     * Create/update given key-value pair to disk and cache, to expire once ttlMillis have passed.
+     * An expired pair is hidden right away and deleted later by the reaper.
      * @param key given key
      * @param value value associated with key
+     * @param ttlMillis time to live in milliseconds; 0 for a pair that never expires
      * @return status of result
      * @throws IOException
      */
-    public KVStorageResult putKV(String key, String value) throws IOException {
-        if (key == null || key.isEmpty() || value == null || value.isEmpty()) {
-            throw new IOException("invalid arguments key - " + key + " value - " + value);
+    public KVStorageResult putKV(String key, String value, long ttlMillis) throws IOException {
+        if (key == null || key.isEmpty() || value == null || value.isEmpty() || ttlMillis < 0) {
+            throw new IOException("invalid arguments key - " + key + " value - " + value + " ttl - " + ttlMillis);
         }
         KVStorageResult result = new KVStorageResult();
-        lock.lock();
+        Lock stripeLock = stripe(key).writeLock();
+        storeLock.readLock().lock();
+        stripeLock.lock();
         try {
-            while (numOfReader > 0) {
-                try {
-                    noReaderCondition.await();
-                } catch (InterruptedException e) {
-                    // TODO: log
-                }
-            }
+            boolean expired = expiry.isExpired(key);
             if (value.equals("null")) {
-                if (deleteFromStorage(key)) {
+                if (deleteFromStorage(key) && !expired) {
                     result.setResult(KVStorageResult.ResultType.DELETE_SUCCESS);
                 } else {
                     result.setResult(KVStorageResult.ResultType.DELETE_ERROR);
                 }
             } else {
-                cache.putKV(key, value);
-                File file = new File(getFilePath(key));
-                if (file.exists()) {
-                    if (updatePair(file, key, value)) {
-                        result.setResult(KVStorageResult.ResultType.PUT_UPDATE_SUCCESS);
-                    } else {
-                        result.setResult(KVStorageResult.ResultType.PUT_UPDATE_ERROR);
+                absentKeys.invalidate(key);
+                KVStorageResult.ResultType put = null;
+                try {
+                    put = engine.put(key, value);
+                    if (written(put)) {
+                        // after the write, as a failed write leaves the old pair with its deadline
+                        expiry.set(key, ttlMillis);
                     }
-                } else {
-                    try {
-                        createPair(file, key, value);
-                        result.setResult(KVStorageResult.ResultType.PUT_SUCCESS);
-                    } catch (IOException ioe) {
-                        result.setResult(KVStorageResult.ResultType.PUT_ERROR);
+                } finally {
+                    // hits do not wait for the stripe lock, so only a written value is cached;
+                    // after a failed write the cached value may no longer match the disk either
+                    if (written(put)) {
+                        cache.putKV(key, value);
+                    } else {
+                        cache.deleteFromCache(key);
                     }
-
                 }
+                result.setResult(created(put, expired));
             }
         } catch (IOException e) {
             System.out.println(e.getLocalizedMessage());
             throw e;
         } finally {
-            lock.unlock();
+            stripeLock.unlock();
+            storeLock.readLock().unlock();
         }
+        syncStorage();
         return result;
     }
 
@@ -85,54 +128,256 @@ public class KVStorage extends KVSimpleStorage {
         if (key == null || key.isEmpty()) {
             throw new IOException("invalid key " + key);
         }
-        KVStorageResult result = new KVStorageResult(KVStorageResult.ResultType.GET_ERROR);
-        lock.lock();
-        ++numOfReader;
-        lock.unlock();
+        return getFromStorage(key, false);
+    }
 
+    /**
+     * @param key valid key
+     * @param absentChecked whether the negative cache was just checked, so that the lookup is not counted twice
+     * @return associated result object
+     */
+    private KVStorageResult getFromStorage(String key, boolean absentChecked) {
+        KVStorageResult result = new KVStorageResult(KVStorageResult.ResultType.GET_ERROR);
+        if (expiry.isExpired(key)) {
+            return result;
+        }
         String val = cache.getKV(key);
-        if (val == null) {
-            try {
-                BufferedReader reader = new BufferedReader(new FileReader(getFilePath(key)));
-                String str;
-                while ((str = reader.readLine()) != null) {
-                    if (str.substring(afterIndicator).equals(key)) {
-                        result.setResult(KVStorageResult.ResultType.GET_SUCCESS);
-                        result.setValue(reader.readLine().substring(afterIndicator));
-                        break;
+        if (val != null) {
+            return new KVStorageResult(KVStorageResult.ResultType.GET_SUCCESS, val);
+        }
+        Lock stripeLock = stripe(key).readLock();
+        storeLock.readLock().lock();
+        stripeLock.lock();
+        try {
+            if (!absentChecked && absentKeys.contains(key)) {
+                return result;
+            }
+            // a writer may have cached the key while this thread waited for the lock
+            val = cache.getKV(key);
+            if (val == null) {
+                try {
+                    val = engine.get(key);
+                    if (val == null) {
+                        // writers of this key are excluded by the stripe lock, so it stays absent until invalidated
+                        absentKeys.add(key);
                     }
-                    reader.readLine();
+                } catch (IOException e) {
+                    // TODO: logging
+                    // invalid key
+                    System.out.println(e.getLocalizedMessage());
                 }
-                reader.close();
-            } catch (IOException e) {
-                // TODO: logging
-                // invalid key
-                System.out.println(e.getLocalizedMessage());
-            } finally {
-                lock.lock();
                 if (val != null) {
+                    // writers of this key are excluded by the stripe lock, so val is still current
                     cache.putKV(key, val);
                 }
-                --numOfReader;
-                if (numOfReader == 0) {
-                    noReaderCondition.signal();
+            }
+            if (val != null) {
+                result.setResult(KVStorageResult.ResultType.GET_SUCCESS);
+                result.setValue(val);
+            }
+        } finally {
+            stripeLock.unlock();
+            storeLock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Asynchronous getKV. A key found in the cache or known to be absent is answered on the
+     * calling thread; otherwise the lookup runs on the I/O executor.
+     * @param key given key
+     * @return future of the associated result object; it fails with IOException for an invalid key
+     * and with RejectedExecutionException if the I/O executor is saturated or closed
+     */
+    public CompletableFuture<KVStorageResult> getKVAsync(final String key) {
+        if (key == null || key.isEmpty()) {
+            return failed(new IOException("invalid key " + key));
+        }
+        KVStorageResult result = getFromMemory(key);
+        if (result != null) {
+            return CompletableFuture.completedFuture(result);
+        }
+        return submit(new Callable<KVStorageResult>() {
+            public KVStorageResult call() {
+                return getFromStorage(key, true);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous putKV, run on the I/O executor.
+     * @param key given key
+     * @param value value associated with key; "null" deletes the key
+     * @return future of the status of result; it fails with IOException for invalid arguments or
+     * a failed write, and with RejectedExecutionException if the I/O executor is saturated or closed
+     */
+    public CompletableFuture<KVStorageResult> putKVAsync(final String key, final String value) {
+        if (key == null || key.isEmpty() || value == null || value.isEmpty()) {
+            return failed(new IOException("invalid arguments key - " + key + " value - " + value));
+        }
+        return submit(new Callable<KVStorageResult>() {
+            public KVStorageResult call() throws IOException {
+                return putKV(key, value);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous getKVInRange, run on the I/O executor.
+     * @param lowerExclusive
+     * @param upperInclusive
+     * @return future of the pairs within the range, completed with null for an invalid or empty range
+     */
+    public CompletableFuture<HashMap<String, String>> getKVInRangeAsync(final String lowerExclusive, final String upperInclusive) {
+        return submit(new Callable<HashMap<String, String>>() {
+            public HashMap<String, String> call() throws IOException {
+                return getKVInRange(lowerExclusive, upperInclusive);
+            }
+        });
+    }
+
+    /**
+     * Answer a lookup from the cache or the negative cache without blocking.
+     * @param key valid key
+     * @return the result; null if the key is in neither or a lock is busy
+     */
+    private KVStorageResult getFromMemory(String key) {
+        if (expiry.isExpired(key)) {
+            return new KVStorageResult(KVStorageResult.ResultType.GET_ERROR);
+        }
+        String val = cache.getKV(key);
+        if (val != null) {
+            return new KVStorageResult(KVStorageResult.ResultType.GET_SUCCESS, val);
+        }
+        Lock stripeLock = stripe(key).readLock();
+        if (!storeLock.readLock().tryLock()) {
+            return null;
+        }
+        try {
+            if (!stripeLock.tryLock()) {
+                return null;
+            }
+            try {
+                if (absentKeys.contains(key)) {
+                    return new KVStorageResult(KVStorageResult.ResultType.GET_ERROR);
                 }
-                lock.unlock();
+                return null;
+            } finally {
+                stripeLock.unlock();
             }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
 
-        } else {
-            result.setResult(KVStorageResult.ResultType.GET_SUCCESS);
-            result.setValue(val);
-            lock.lock();
-            cache.updateOrderList(key);
-            --numOfReader;
-            if (numOfReader == 0) {
-                noReaderCondition.signal();
+    /**
+     * Run a task on the I/O executor
+     * @return future completed with the outcome of the task
+     */
+    private <T> CompletableFuture<T> submit(final Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Semaphore permits;
+        ExecutorService executor;
+        ioExecutorLock.lock();
+        try {
+            executor = ioExecutor();
+            permits = ioPermits;
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return future;
+        } finally {
+            ioExecutorLock.unlock();
+        }
+        if (permits != null && !permits.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException("Too many operations in flight"));
+            return future;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (permits != null) {
+                permits.release();
             }
-            lock.unlock();
+            future.completeExceptionally(e);
         }
+        return future;
+    }
 
-        return result;
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /**
+     * Create the I/O executor on first use: a virtual thread per operation, or asyncThreads
+     * platform threads and a queue of asyncQueueCapacity operations.
+     * The caller holds ioExecutorLock.
+     * @return the I/O executor
+     * @throws RejectedExecutionException if the storage is closed
+     */
+    private ExecutorService ioExecutor() {
+        if (closed) {
+            throw new RejectedExecutionException("Storage is closed");
+        }
+        if (ioExecutor == null && executionMode == KVStorageOptions.ExecutionMode.VirtualThreads) {
+            ioExecutor = KVThreads.newVirtualThreadPerTaskExecutor();
+            if (ioExecutor != null) {
+                ioPermits = new Semaphore(asyncQueueCapacity);
+            } else {
+                // TODO: logging
+                System.out.println("Virtual threads are not available, using platform threads");
+            }
+        }
+        if (ioExecutor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            ioExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(asyncQueueCapacity), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "storage-io-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Finish the asynchronous operations already submitted, then close the storage.
+     * Operations submitted afterwards fail with RejectedExecutionException.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        ExecutorService executor;
+        ioExecutorLock.lock();
+        try {
+            closed = true;
+            executor = ioExecutor;
+        } finally {
+            ioExecutorLock.unlock();
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.close();
     }
 
     /**
@@ -144,19 +389,7 @@ public class KVStorage extends KVSimpleStorage {
         if (key == null || key.isEmpty()) {
             return false;
         }
-        lock.lock();
-        ++numOfReader;
-        lock.unlock();
-
-        boolean in = cache.inCache(key);
-
-        lock.lock();
-        --numOfReader;
-        if (numOfReader == 0) {
-            noReaderCondition.signal();
-        }
-        lock.unlock();
-        return in;
+        return cache.inCache(key);
     }
 
     /**
@@ -165,50 +398,163 @@ public class KVStorage extends KVSimpleStorage {
      * @return
      */
     public boolean inStorage(String key) {
+        if (key == null || key.isEmpty() || expiry.isExpired(key) || absentKeys.contains(key)) {
+            return false;
+        }
         return inCache(key) || super.inStorage(key);
     }
 
     /**
-     * Clear the cache associated with this storage object
+     * Clear the cache and the negative cache associated with this storage object
      */
     public void clearCache() {
-        lock.lock();
         cache.clearCache();
-        lock.unlock();
+        absentKeys.clear();
+    }
+
+    /**
+     * Delete the pairs within the given range from disk, and drop the cached values.
+     * KVConcurrentCache cannot enumerate its keys by hash, so the whole cache is cleared; absent
+     * keys stay absent and the negative cache is kept.
+     * @param lowerExclusive
+     * @param upperInclusive
+     */
+    public void deleteKVInRange(String lowerExclusive, String upperInclusive) {
+        // held across the delete so that no reader sees a cached value of a deleted pair
+        storeLock.writeLock().lock();
+        try {
+            cache.clearCache();
+            super.deleteKVInRange(lowerExclusive, upperInclusive);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of lookups answered from the negative cache
+     */
+    public long getNegativeCacheHits() {
+        return absentKeys.getHits();
+    }
+
+    /**
+     * @return number of lookups that missed the negative cache
+     */
+    public long getNegativeCacheMisses() {
+        return absentKeys.getMisses();
+    }
+
+    /**
+     * @return number of absent keys currently remembered
+     */
+    public int getNegativeCacheSize() {
+        return absentKeys.size();
     }
 
     /**
      * Clear storage
      */
     public void clearStorage() {
-        lock.lock();
-        cache.clearCache();
-        File dir = new File(dbPath);
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file: files) {
-                if (!file.delete()) {
+        storeLock.writeLock().lock();
+        try {
+            clearCache();
+            engine.clear();
+            clearExpiry();
+            File dir = new File(dbPath);
+            if (dir.exists()) {
+                if(!dir.delete()) {
                     // TODO: logging
-                    System.out.println("Failed to delete " + file);
+                    System.out.println("Failed to delete " + dir);
                 }
             }
-            if(!dir.delete()) {
-                // TODO: logging
-                System.out.println("Failed to delete " + dir);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply a batch to disk, dropping the cached values and absent marks of its keys.
+     * @param batch pairs to put; a null value deletes the key
+     * @return true if the batch is applied, false if none of it is
+     * @throws IOException
+     */
+    protected boolean applyBatch(Map<String, String> batch) throws IOException {
+        for (String key: batch.keySet()) {
+            absentKeys.invalidate(key);
+        }
+        for (String key: batch.keySet()) {
+            cache.deleteFromCache(key);
+        }
+        return super.applyBatch(batch);
+    }
+
+    /**
+     * Answer the keys found in the cache or known to be absent from memory, and get the others
+     * from disk in one batch, caching what it finds.
+     * @param keys distinct valid keys
+     * @return values of the stored keys
+     * @throws IOException
+     */
+    protected Map<String, String> getBatch(Set<String> keys) throws IOException {
+        Set<String> candidates = new HashSet<>();
+        for (String key: keys) {
+            if (!absentKeys.contains(key)) {
+                candidates.add(key);
+            }
+        }
+        Map<String, String> values = new HashMap<>();
+        Set<String> missing = new HashSet<>();
+        for (String key: candidates) {
+            String val = cache.getKV(key);
+            if (val != null) {
+                values.put(key, val);
+            } else {
+                missing.add(key);
             }
         }
+        if (missing.isEmpty()) {
+            return values;
+        }
+        Map<String, String> stored = super.getBatch(missing);
+        // writers of these keys are excluded by the stripe locks, so the values are still current
+        for (Map.Entry<String, String> pair: stored.entrySet()) {
+            cache.putKV(pair.getKey(), pair.getValue());
+        }
+        for (String key: missing) {
+            if (!stored.containsKey(key)) {
+                absentKeys.add(key);
+            }
+        }
+        values.putAll(stored);
+        return values;
+    }
 
-        lock.unlock();
+    /**
+     * Delete several keys from cache and disk; once deleted they are known to be absent.
+     * @param keys distinct valid keys
+     * @return the keys that were stored and are now deleted; null if the batch is not applied
+     * @throws IOException
+     */
+    protected Set<String> deleteBatch(Set<String> keys) throws IOException {
+        Set<String> deleted = super.deleteBatch(keys);
+        if (deleted != null) {
+            for (String key: keys) {
+                absentKeys.add(key);
+            }
+        }
+        return deleted;
     }
 
     /**
-     * Delete the key-value pair from cache and disk.
+     * Delete the key-value pair from cache and disk; the key is then known to be absent.
      * @param key key to delete
      * @return
      * @throws IOException
      */
     protected boolean deleteFromStorage(String key) throws IOException {
         cache.deleteFromCache(key);
-        return super.deleteFromStorage(key);
+        boolean deleted = super.deleteFromStorage(key);
+        absentKeys.add(key);
+        return deleted;
     }
 }
@@ -0,0 +1,244 @@
+package com.company;
+
+/**
+ * Tuning options of KVSimpleStorage/KVStorage.
+ * Setters return the options object so that they can be chained.
+ */
+public class KVStorageOptions {
+
+    public enum ReadMode {
+        Stream, // positioned reads through FileChannel/readers opened per call
+        MemoryMapped // data files are mapped with FileChannel.map and read by offset
+    }
+
+    /**
+     * When writes reach stable storage. Every mode writes through to the OS before
+     * putKV returns, so a crash of the process alone never loses an acknowledged write;
+     * the modes differ in what a power failure or kernel crash can lose.
+     */
+    public enum Durability {
+        Sync, // putKV returns once the write is forced to disk; nothing acknowledged is lost
+        Periodic, // a background flusher forces writes every syncIntervalMillis; the last interval may be lost
+        OS // the OS writes back when it sees fit; anything not yet written back may be lost
+    }
+
+    /**
+     * Threads running the asynchronous operations of KVStorage.
+     */
+    public enum ExecutionMode {
+        PlatformThreads, // a pool of asyncThreads threads with a queue of asyncQueueCapacity operations
+        VirtualThreads // a virtual thread per operation, at most asyncQueueCapacity in flight; needs Java 21
+    }
+
+    private IKVServer.StorageFormat format = IKVServer.StorageFormat.Bucket;
+    private ReadMode readMode = ReadMode.Stream;
+    private Durability durability = Durability.Sync;
+    private long syncIntervalMillis = 100;
+    private int negativeCacheCapacity = 1024;
+    private int cacheDecayInterval = 0;
+    private String compression = null;
+    private int compressionThreshold = 256;
+    private long compactionBytesPerSecond = 32L << 20;
+    private double compactionGarbageRatio = 0.5;
+    private int asyncThreads = Runtime.getRuntime().availableProcessors();
+    private int asyncQueueCapacity = 4096;
+    private ExecutionMode executionMode = ExecutionMode.PlatformThreads;
+
+    public IKVServer.StorageFormat getFormat() {
+        return format;
+    }
+
+    public KVStorageOptions setFormat(IKVServer.StorageFormat format) {
+        this.format = format;
+        return this;
+    }
+
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+
+    /**
+     * Memory mapped reads apply to the Log and LSM formats, whose records are found by offset.
+     * Bucket files are rewritten on every update and are always read as streams.
+     * @param readMode
+     * @return
+     */
+    public KVStorageOptions setReadMode(ReadMode readMode) {
+        this.readMode = readMode;
+        return this;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public KVStorageOptions setDurability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    /**
+     * @param syncIntervalMillis time between two forces of the background flusher, used by Durability.Periodic
+     * @return
+     */
+    public KVStorageOptions setSyncIntervalMillis(long syncIntervalMillis) {
+        if (syncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive");
+        }
+        this.syncIntervalMillis = syncIntervalMillis;
+        return this;
+    }
+
+    public int getNegativeCacheCapacity() {
+        return negativeCacheCapacity;
+    }
+
+    /**
+     * @param negativeCacheCapacity number of absent keys KVStorage remembers, 0 to disable
+     * @return
+     */
+    public KVStorageOptions setNegativeCacheCapacity(int negativeCacheCapacity) {
+        if (negativeCacheCapacity < 0) {
+            throw new IllegalArgumentException("Negative cache capacity cannot be negative");
+        }
+        this.negativeCacheCapacity = negativeCacheCapacity;
+        return this;
+    }
+
+    public int getCacheDecayInterval() {
+        return cacheDecayInterval;
+    }
+
+    /**
+     * Used by the LFU cache strategy of KVStorage, which halves every frequency once this many
+     * cache accesses have passed, so that keys which were hot long ago do not stay cached forever.
+     * @param cacheDecayInterval number of accesses, best at least the number of cached entries; 0 to disable
+     * @return
+     */
+    public KVStorageOptions setCacheDecayInterval(int cacheDecayInterval) {
+        if (cacheDecayInterval < 0) {
+            throw new IllegalArgumentException("Cache decay interval cannot be negative");
+        }
+        this.cacheDecayInterval = cacheDecayInterval;
+        return this;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * Values written from now on are compressed with the given codec; files written with
+     * another codec or without compression stay readable.
+     * @param compression name of a KVCodec, "deflate", "deflate-level1" and "lz4" are built in; null to disable
+     * @return
+     */
+    public KVStorageOptions setCompression(String compression) {
+        if (compression != null) {
+            KVCompression.forName(compression);
+        }
+        this.compression = compression;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold size in bytes below which values are not compressed
+     * @return
+     */
+    public KVStorageOptions setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("Compression threshold cannot be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public long getCompactionBytesPerSecond() {
+        return compactionBytesPerSecond;
+    }
+
+    /**
+     * @param compactionBytesPerSecond bytes per second background compaction may read and write, 0 for no limit
+     * @return
+     */
+    public KVStorageOptions setCompactionBytesPerSecond(long compactionBytesPerSecond) {
+        if (compactionBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Compaction rate cannot be negative");
+        }
+        this.compactionBytesPerSecond = compactionBytesPerSecond;
+        return this;
+    }
+
+    public double getCompactionGarbageRatio() {
+        return compactionGarbageRatio;
+    }
+
+    /**
+     * Used by the Log format, whose sealed segments are rewritten once this fraction of
+     * their bytes is overwritten or deleted data.
+     * @param compactionGarbageRatio fraction between 0 (exclusive) and 1
+     * @return
+     */
+    public KVStorageOptions setCompactionGarbageRatio(double compactionGarbageRatio) {
+        if (!(compactionGarbageRatio > 0 && compactionGarbageRatio <= 1)) {
+            throw new IllegalArgumentException("Garbage ratio must be in (0, 1]");
+        }
+        this.compactionGarbageRatio = compactionGarbageRatio;
+        return this;
+    }
+
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    /**
+     * @param asyncThreads number of threads running the asynchronous operations of KVStorage
+     * @return
+     */
+    public KVStorageOptions setAsyncThreads(int asyncThreads) {
+        if (asyncThreads <= 0) {
+            throw new IllegalArgumentException("Async thread count must be positive");
+        }
+        this.asyncThreads = asyncThreads;
+        return this;
+    }
+
+    public int getAsyncQueueCapacity() {
+        return asyncQueueCapacity;
+    }
+
+    /**
+     * @param asyncQueueCapacity number of asynchronous operations that may wait for a thread;
+     *                           further ones fail with RejectedExecutionException
+     * @return
+     */
+    public KVStorageOptions setAsyncQueueCapacity(int asyncQueueCapacity) {
+        if (asyncQueueCapacity <= 0) {
+            throw new IllegalArgumentException("Async queue capacity must be positive");
+        }
+        this.asyncQueueCapacity = asyncQueueCapacity;
+        return this;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * KVStorage falls back to platform threads when the JVM has no virtual threads.
+     * @param executionMode threads running the asynchronous operations
+     * @return
+     */
+    public KVStorageOptions setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+}
@@ -0,0 +1,136 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel of key deadlines.
+ *
+ * LEVELS wheels of SLOTS slots each; a slot of level l spans SLOTS^l ticks. A deadline goes into
+ * the lowest level whose wheel reaches it, and the slots of the upper levels are moved down as
+ * the wheel turns onto them, so adding a deadline and reaching it are O(1) whatever the number
+ * of pending deadlines. Deadlines beyond the top level wait in an overflow list which is
+ * redistributed once per turn of the top level.
+ *
+ * Deadlines are never removed: a key whose deadline changed is reported when its old deadline
+ * comes, and the caller checks it against the current one.
+ * This class is not thread-safe.
+ */
+class KVTimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private static class Entry {
+        final String key;
+        final long tick;
+
+        Entry(String key, long tick) {
+            this.key = key;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<List<List<Entry>>> levels = new ArrayList<>();
+    private List<Entry> overflow = new ArrayList<>();
+    private List<String> due = new ArrayList<>();
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param nowMillis current time
+     */
+    KVTimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (int l = 0; l < LEVELS; ++l) {
+            List<List<Entry>> slots = new ArrayList<>(SLOTS);
+            for (int i = 0; i < SLOTS; ++i) {
+                slots.add(new ArrayList<Entry>());
+            }
+            levels.add(slots);
+        }
+    }
+
+    /**
+     * @param key given key
+     * @param deadlineMillis time at which the key expires
+     */
+    void add(String key, long deadlineMillis) {
+        // rounded up, so that a key is never reported before its deadline
+        place(new Entry(key, (deadlineMillis + tickMillis - 1) / tickMillis));
+        ++size;
+    }
+
+    /**
+     * Turn the wheel up to the given time.
+     * @param nowMillis current time
+     * @return the keys whose deadline is reached, in no particular order
+     */
+    List<String> advance(long nowMillis) {
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            ++currentTick;
+            for (int l = LEVELS - 1; l > 0; --l) {
+                if ((currentTick & ((1L << (SLOT_BITS * l)) - 1)) == 0) {
+                    cascade(levels.get(l).get((int) (currentTick >>> (SLOT_BITS * l)) & (SLOTS - 1)));
+                }
+            }
+            if ((currentTick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+                List<Entry> entries = overflow;
+                overflow = new ArrayList<>();
+                cascade(entries);
+            }
+            List<Entry> slot = levels.get(0).get((int) currentTick & (SLOTS - 1));
+            for (Entry entry: slot) {
+                due.add(entry.key);
+            }
+            size -= slot.size();
+            slot.clear();
+        }
+        List<String> keys = due;
+        due = new ArrayList<>();
+        return keys;
+    }
+
+    /**
+     * @return number of deadlines not reached yet
+     */
+    int size() {
+        return size;
+    }
+
+    private void cascade(List<Entry> slot) {
+        List<Entry> entries = new ArrayList<>(slot);
+        slot.clear();
+        size -= entries.size();
+        for (Entry entry: entries) {
+            place(entry);
+            ++size;
+        }
+    }
+
+    /**
+     * Put an entry into the lowest level whose wheel reaches its tick. Comparing the ticks
+     * shifted to the slot size of a level, rather than their difference, keeps an entry out
+     * of the slot of the current turn, which has already been moved down.
+     */
+    private void place(Entry entry) {
+        if (entry.tick <= currentTick) {
+            due.add(entry.key);
+            --size;
+            return;
+        }
+        for (int l = 0; l < LEVELS; ++l) {
+            int shift = SLOT_BITS * l;
+            if ((entry.tick >>> shift) - (currentTick >>> shift) < SLOTS) {
+                levels.get(l).get((int) (entry.tick >>> shift) & (SLOTS - 1)).add(entry);
+                return;
+            }
+        }
+        overflow.add(entry);
+    }
+}
@@ -0,0 +1,174 @@
+package com.company;
+
+/**
+ * W-TinyLFU strategy of KVCache.
+ *
+ * New nodes enter a small LRU window, 1% of the capacity. Behind it, the main region is a
+ * segmented LRU: nodes are admitted into its probation segment and promoted to its protected
+ * segment, 80% of the main region, on their next access. Once the window is over its share, its
+ * least recent node is a candidate for the main region, admitted only if a count-min sketch
+ * estimates it was accessed more often than the least recent node of probation, which is evicted
+ * in its place; otherwise the candidate is evicted. A scan thus passes through the window without
+ * flushing the frequently used nodes of the main region.
+ * Weights are value lengths, as for the capacity of KVCache.
+ * This class is not thread-safe.
+ */
+class KVTinyLFUPolicy implements KVCachePolicy {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final KVCacheList window = new KVCacheList();
+    private final KVCacheList probation = new KVCacheList();
+    private final KVCacheList protectedSegment = new KVCacheList();
+    private final KVFrequencySketch sketch = new KVFrequencySketch();
+    private final int windowMax;
+    private final int mainMax;
+    private final int protectedMax;
+    private int windowWeight;
+    private int mainWeight; // probation and protected
+    private int protectedWeight;
+    private int size;
+
+    /**
+     * @param capacity capacity of the cache
+     */
+    KVTinyLFUPolicy(int capacity) {
+        windowMax = Math.max(1, capacity / 100);
+        mainMax = capacity - windowMax;
+        protectedMax = mainMax / 5 * 4;
+        sketch.ensureCapacity(16);
+    }
+
+    public void miss(String key) {
+    }
+
+    public void insert(CacheNode node) {
+        sketch.increment(node.key);
+        node.weight = node.value.length();
+        node.region = WINDOW;
+        window.addLast(node);
+        windowWeight += node.weight;
+        sketch.ensureCapacity(++size);
+    }
+
+    public void touch(CacheNode node) {
+        sketch.increment(node.key);
+        int delta = node.value.length() - node.weight;
+        node.weight += delta;
+        switch (node.region) {
+            case WINDOW:
+                windowWeight += delta;
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                mainWeight += delta;
+                probation.remove(node);
+                node.region = PROTECTED;
+                protectedSegment.addLast(node);
+                protectedWeight += node.weight;
+                demoteProtected();
+                break;
+            case PROTECTED:
+                mainWeight += delta;
+                protectedWeight += delta;
+                protectedSegment.moveToLast(node);
+                demoteProtected();
+                break;
+        }
+    }
+
+    public boolean mark(CacheNode node) {
+        return false;
+    }
+
+    public void remove(CacheNode node) {
+        unlink(node);
+    }
+
+    /**
+     * Called once the cache is full. While the window is over its share, its least recent node
+     * moves to the main region if there is room left, and competes with the victim of the main
+     * region otherwise.
+     */
+    public CacheNode evict() {
+        while (windowWeight > windowMax) {
+            CacheNode candidate = window.peekFirst();
+            CacheNode victim = probation.size() > 0 ? probation.peekFirst() : protectedSegment.peekFirst();
+            if (victim == null || mainWeight + candidate.weight <= mainMax) {
+                admit(candidate);
+                continue;
+            }
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                admit(candidate);
+                unlink(victim);
+                return victim;
+            }
+            unlink(candidate);
+            return candidate;
+        }
+        CacheNode victim = probation.size() > 0 ? probation.peekFirst() : protectedSegment.peekFirst();
+        if (victim == null) {
+            victim = window.peekFirst();
+        }
+        if (victim != null) {
+            unlink(victim);
+        }
+        return victim;
+    }
+
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        sketch.clear();
+        windowWeight = 0;
+        mainWeight = 0;
+        protectedWeight = 0;
+        size = 0;
+    }
+
+    /**
+     * Move the least recent nodes of the protected segment back to probation while it is over
+     * its share, keeping at least one node
+     */
+    private void demoteProtected() {
+        while (protectedWeight > protectedMax && protectedSegment.size() > 1) {
+            CacheNode node = protectedSegment.pollFirst();
+            protectedWeight -= node.weight;
+            node.region = PROBATION;
+            probation.addLast(node);
+        }
+    }
+
+    /**
+     * Move a node of the window to the tail of probation
+     */
+    private void admit(CacheNode node) {
+        window.remove(node);
+        windowWeight -= node.weight;
+        node.region = PROBATION;
+        probation.addLast(node);
+        mainWeight += node.weight;
+    }
+
+    private void unlink(CacheNode node) {
+        switch (node.region) {
+            case WINDOW:
+                window.remove(node);
+                windowWeight -= node.weight;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                mainWeight -= node.weight;
+                break;
+            case PROTECTED:
+                protectedSegment.remove(node);
+                mainWeight -= node.weight;
+                protectedWeight -= node.weight;
+                break;
+        }
+        --size;
+    }
+}
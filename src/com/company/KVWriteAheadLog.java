@@ -0,0 +1,302 @@
+package com.company;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only log of KVRecords with group commit.
+ *
+ * append() only hands the record to the OS; sync(lsn) blocks until everything up to the
+ * given log sequence number is on stable storage. Concurrent callers of sync() are batched:
+ * the first one becomes the leader and forces the channel on behalf of everything appended
+ * so far, while the others wait for it, so the number of FileChannel.force calls grows with
+ * the number of batches rather than the number of writers.
+ *
+ * Log sequence numbers keep growing across truncate(), so a waiter is never confused by
+ * a checkpoint that happens while it waits.
+ *
+ * appendBatch() writes a batch header followed by the records of the batch; scan() only
+ * reports a batch once all of its records are read, so a batch torn by a crash is dropped
+ * as a whole.
+ */
+class KVWriteAheadLog implements Closeable {
+
+    /**
+     * Callback of scan()
+     */
+    interface RecordVisitor {
+        /**
+         * @param record record read from the log, never a batch header
+         * @param offset offset of the record in the file
+         * @throws IOException
+         */
+        void visit(KVRecord record, long offset) throws IOException;
+    }
+
+    private final File file;
+    private final FileChannel channel;
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private long size; // guarded by appendLock
+    private long base = 0; // lsn of offset 0 of the file, guarded by appendLock
+    private volatile long appendedLsn;
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private long durableLsn; // guarded by syncLock
+    private boolean syncing = false; // guarded by syncLock
+
+    /**
+     * Open (or create) the log at the given path; new records go after the existing content.
+     * @param file log file
+     * @throws IOException
+     */
+    KVWriteAheadLog(File file) throws IOException {
+        this(file, FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Wrap an already opened channel whose content is valid.
+     * @param file log file
+     * @param channel readable and writable channel of the file
+     * @throws IOException
+     */
+    KVWriteAheadLog(File file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.size = channel.size();
+        this.appendedLsn = size;
+        this.durableLsn = size;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return number of bytes in the log file
+     */
+    long size() {
+        appendLock.lock();
+        try {
+            return size;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * @return log sequence number of the last append
+     */
+    long appendedLsn() {
+        return appendedLsn;
+    }
+
+    /**
+     * Append an encoded record. On failure the file is truncated back so that no partial
+     * record is left in the middle of the log.
+     * @param record encoded record
+     * @return offset of the record in the file
+     * @throws IOException
+     */
+    long append(ByteBuffer record) throws IOException {
+        appendLock.lock();
+        try {
+            long offset = size;
+            try {
+                while (record.hasRemaining()) {
+                    channel.write(record, offset + record.position());
+                }
+            } catch (IOException ioe) {
+                channel.truncate(offset);
+                throw ioe;
+            }
+            size += record.limit();
+            appendedLsn = base + size;
+            return offset;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Append the records of a batch behind a batch header, in a single write.
+     * @param records encoded records
+     * @return offset of the first record of the batch in the file
+     * @throws IOException
+     */
+    long appendBatch(List<ByteBuffer> records) throws IOException {
+        ByteBuffer header = KVRecord.encodeBatchHeader(records.size());
+        int headerLength = header.remaining();
+        int length = headerLength;
+        for (ByteBuffer record: records) {
+            length += record.remaining();
+        }
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        batch.put(header);
+        for (ByteBuffer record: records) {
+            batch.put(record.duplicate());
+        }
+        batch.flip();
+        return append(batch) + headerLength;
+    }
+
+    /**
+     * Block until everything appended up to lsn is on stable storage.
+     * @param lsn log sequence number returned by appendedLsn()
+     * A closed log counts as synced, since it is only closed after a final sync or when
+     * its content is being discarded.
+     * @throws IOException if forcing the channel failed
+     */
+    void sync(long lsn) throws IOException {
+        syncLock.lock();
+        try {
+            while (durableLsn < lsn) {
+                if (syncing) {
+                    // a leader is forcing the channel, its force may cover us
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = appendedLsn;
+                syncLock.unlock();
+                boolean forced = false;
+                try {
+                    channel.force(false);
+                    forced = true;
+                } catch (ClosedChannelException e) {
+                    // the log was synced before it was closed, or discarded by a clear
+                    forced = true;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (forced && target > durableLsn) {
+                        durableLsn = target;
+                    }
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Block until everything appended so far is on stable storage.
+     * @throws IOException
+     */
+    void sync() throws IOException {
+        sync(appendedLsn);
+    }
+
+    /**
+     * Read the records of the log, dropping a torn or corrupted tail.
+     * @return the valid records in log order
+     * @throws IOException
+     */
+    List<KVRecord> replay() throws IOException {
+        final List<KVRecord> records = new ArrayList<>();
+        appendLock.lock();
+        try {
+            long offset = scan(file, size, new RecordVisitor() {
+                public void visit(KVRecord record, long offset) {
+                    records.add(record);
+                }
+            });
+            if (offset < size) {
+                System.out.println("Truncating " + file + " at " + offset);
+                channel.truncate(offset);
+                size = offset;
+                appendedLsn = base + size;
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        return records;
+    }
+
+    /**
+     * Read the valid prefix of a log file, passing its records to the visitor in order.
+     * The records of a batch are only passed once the whole batch is read.
+     * @param file log file
+     * @param size number of bytes to read
+     * @param visitor callback
+     * @return size of the valid prefix; the rest of the file is torn or corrupted
+     * @throws IOException
+     */
+    static long scan(File file, long size, RecordVisitor visitor) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long offset = 0; // end of the last complete record or batch
+        int batchRemaining = 0;
+        List<KVRecord> batch = new ArrayList<>();
+        List<Long> batchOffsets = new ArrayList<>();
+        try {
+            KVRecord record;
+            long position = 0;
+            while ((record = KVRecord.read(in, size - position)) != null) {
+                long recordOffset = position;
+                position += record.length();
+                if (record.isBatchHeader()) {
+                    batchRemaining = record.batchSize();
+                } else if (batchRemaining > 0) {
+                    batch.add(record);
+                    batchOffsets.add(recordOffset);
+                    --batchRemaining;
+                } else {
+                    visitor.visit(record, recordOffset);
+                }
+                if (batchRemaining == 0) {
+                    for (int i = 0; i < batch.size(); ++i) {
+                        visitor.visit(batch.get(i), batchOffsets.get(i));
+                    }
+                    batch.clear();
+                    batchOffsets.clear();
+                    offset = position;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return offset;
+    }
+
+    /**
+     * Empty the log after a checkpoint. The caller guarantees that everything the log
+     * protected is already on stable storage elsewhere.
+     * @throws IOException
+     */
+    void truncate() throws IOException {
+        appendLock.lock();
+        try {
+            channel.truncate(0);
+            channel.force(false);
+            base += size;
+            size = 0;
+            appendedLsn = base;
+            syncLock.lock();
+            if (durableLsn < base) {
+                durableLsn = base;
+            }
+            synced.signalAll();
+            syncLock.unlock();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,5 +1,8 @@
 package com.company;
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -7,19 +10,173 @@ import java.util.Map;
  */
 interface IKVServer {
     enum CacheStrategy {
-        None, FIFO, LRU, LFU
+        None, FIFO, LRU, LFU,
+        TinyLFU, // LRU window in front of a segmented LRU, admission by a count-min sketch of frequencies
+        ARC, // adaptive split between recency and frequency, guided by ghost lists of evicted keys
+        ClockPro // clock of hot and cold nodes with adaptive cold share, hits only set a reference bit
+    }
+
+    enum StorageFormat {
+        Bucket, // one file per MD5 bucket, rewritten on every update
+        Log, // append-only segments with an in-memory key directory
+        LSM // memtable + sorted tables with leveled compaction
     }
 }
 
+/**
+ * On-disk layout used by KVSimpleStorage.
+ * KVSimpleStorage guarantees that a write never runs concurrently with another operation
+ * on a key of the same MD5 bucket, while operations on other buckets may run concurrently.
+ * writeBatch holds every bucket of its batch, getInRange runs concurrently with reads only,
+ * and deleteInRange, clear and close run alone.
+ */
+interface IKVStorageEngine {
+
+    /**
+     * @param key given key
+     * @return value associated with key; null if the key is not stored
+     * @throws IOException
+     */
+    public String get(String key) throws IOException;
+
+    /**
+     * Check whether a key is stored, without reading its value where the layout allows it.
+     * Absent keys are answered from memory.
+     * @param key given key
+     * @return true if the key is stored
+     * @throws IOException
+     */
+    public boolean contains(String key) throws IOException;
+
+    /**
+     * Get several keys at once, reading each file at most once.
+     * @param keys distinct keys
+     * @return values of the stored keys among the given ones; keys not stored are left out
+     * @throws IOException
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws IOException;
+
+    /**
+     * Create/update the given key-value pair.
+     * @return PUT_SUCCESS/PUT_UPDATE_SUCCESS, or the matching error type
+     * @throws IOException
+     */
+    public KVStorageResult.ResultType put(String key, String value) throws IOException;
+
+    /**
+     * @return true if the key was stored and is now deleted, false otherwise
+     * @throws IOException
+     */
+    public boolean delete(String key) throws IOException;
+
+    /**
+     * @return all pairs whose key hash is in (lowerExclusive, upperInclusive]; empty if none
+     * @throws IOException
+     */
+    public HashMap<String, String> getInRange(String lowerExclusive, String upperInclusive) throws IOException;
+
+    /**
+     * Open a cursor over the pairs whose key hash is in (lowerExclusive, upperInclusive],
+     * in hash order starting after lowerExclusive. The cursor reads from a snapshot taken
+     * here, so writes made once this returns are not seen by it.
+     * @return cursor, which the caller must close
+     * @throws IOException
+     */
+    public IKVCursor openCursor(String lowerExclusive, String upperInclusive) throws IOException;
+
+    /**
+     * Apply a batch of updates atomically: after a crash, either every update of the
+     * batch or none of them is found.
+     * @param batch pairs to put; a null value deletes the key, deleting a missing key does nothing
+     * @return true if the batch is applied, false if none of it is
+     * @throws IOException if the batch is committed but could not be applied in full;
+     * reopening the storage completes it
+     */
+    public boolean writeBatch(Map<String, String> batch) throws IOException;
+
+    /**
+     * Delete all pairs whose key hash is in (lowerExclusive, upperInclusive]
+     */
+    public void deleteInRange(String lowerExclusive, String upperInclusive);
+
+    /**
+     * Run the compactions that are due now and wait for them, instead of waiting for the
+     * background compactor to get to them. Formats that leave no garbage behind do nothing.
+     * @throws IOException
+     */
+    public void compact() throws IOException;
+
+    /**
+     * @return progress and debt of background compaction
+     */
+    public KVCompactionStats getCompactionStats();
+
+    /**
+     * Block until every write made so far is on stable storage.
+     * Called by the facade after it lets go of its lock, so that concurrent writers
+     * share one fsync (group commit).
+     * @throws IOException
+     */
+    public void sync() throws IOException;
+
+    /**
+     * Remove everything from disk
+     */
+    public void clear();
+
+    /**
+     * Release open files; the engine cannot be used afterwards
+     * @throws IOException
+     */
+    public void close() throws IOException;
+}
+
+/**
+ * Forward-only cursor over a snapshot of the storage.
+ * Pairs are read as the cursor advances, so it holds at most a few of them in memory.
+ * It must be closed to release its snapshot.
+ */
+interface IKVCursor extends Closeable {
+
+    /**
+     * Move to the next pair.
+     * @return false once every pair has been returned
+     * @throws IOException
+     */
+    public boolean next() throws IOException;
+
+    /**
+     * @return key of the current pair
+     */
+    public String getKey();
+
+    /**
+     * @return value of the current pair
+     */
+    public String getValue();
+}
+
 
 class CacheNode {
     String key;
+    volatile String value; // read by KVCache.getKV without the lock of the cache
     int freq = 1;
+    CacheNode prev; // links of the KVCacheList holding the node
+    CacheNode next;
+    KVFrequencyList.Bucket bucket; // bucket of the node under LFU
+    int region; // list holding the node, for strategies with several lists
+    int weight; // value length the strategy accounted for
+    volatile boolean referenced; // reference bit of ClockPro, set by hits without lock
 
     public CacheNode(String key) {
         this.key = key;
     }
 
+    public CacheNode(String key, String value) {
+        this.key = key;
+        this.value = value;
+    }
+
     public CacheNode(String key, int freq) {
         this.key = key;
         this.freq = freq;